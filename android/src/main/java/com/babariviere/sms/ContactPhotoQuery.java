@@ -43,9 +43,8 @@ public class ContactPhotoQuery
     private Context context;
     private ActivityPluginBinding activityBinding;
     private Permissions permissions;
-    private MethodChannel.Result pendingResult;
-    private String pendingPhotoUri;
-    private boolean pendingFullSize;
+    // pedidos em curso, um por chamada
+    private final PendingCalls<PhotoRequest> pendingCalls = new PendingCalls<>();
 
     // 1) Regista o canal ao anexar o engine
     @Override
@@ -101,49 +100,67 @@ public class ContactPhotoQuery
             result.error("#02", "missing argument 'photoUri'", null);
             return;
         }
-        pendingResult = result;
-        pendingPhotoUri = call.argument("photoUri");
-        pendingFullSize = call.hasArgument("fullSize") && (boolean) call.argument("fullSize");
+        PhotoRequest request = new PhotoRequest(
+            call.<String>argument("photoUri"),
+            call.hasArgument("fullSize") && (boolean) call.argument("fullSize")
+        );
+        boolean granted = ContextCompat.checkSelfPermission(context, permissionsList[0])
+                == PackageManager.PERMISSION_GRANTED;
+        PendingCalls.Call<PhotoRequest> pending = pendingCalls.add(request, result, !granted);
 
-        if (ContextCompat.checkSelfPermission(context, permissionsList[0])
-                != PackageManager.PERMISSION_GRANTED) {
+        if (!granted) {
             ActivityCompat.requestPermissions(
                 activityBinding.getActivity(),
                 permissionsList,
                 READ_CONTACT_ID_REQ
             );
         } else {
-            handleContactPhoto();
+            runQuery(pending);
         }
     }
 
-    // 5) Lógica original para ler thumbnail ou foto completa
+    // 5) Lê a foto no pool de I/O e responde na thread da plataforma
+    private void runQuery(final PendingCalls.Call<PhotoRequest> pending) {
+        SmsExecutors.io().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleContactPhoto(pending.params.photoUri, pending.params.fullSize, pending);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    pending.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    // Lógica original para ler thumbnail ou foto completa
     @TargetApi(Build.VERSION_CODES.ECLAIR)
-    private void handleContactPhoto() {
-        if (pendingFullSize) {
-            queryContactPhoto();
+    private void handleContactPhoto(String photoUri, boolean fullSize, MethodChannel.Result result) {
+        if (fullSize) {
+            queryContactPhoto(photoUri, result);
         } else {
-            queryContactThumbnail();
+            queryContactThumbnail(photoUri, result);
         }
     }
 
     @TargetApi(Build.VERSION_CODES.ECLAIR)
-    private void queryContactThumbnail() {
-        Uri uri = Uri.withAppendedPath(ContactsContract.AUTHORITY_URI, pendingPhotoUri);
+    private void queryContactThumbnail(String photoUri, MethodChannel.Result result) {
+        Uri uri = Uri.withAppendedPath(ContactsContract.AUTHORITY_URI, photoUri);
         Cursor cursor = context.getContentResolver().query(
             uri,
             new String[]{ ContactsContract.CommonDataKinds.Photo.PHOTO },
             null, null, null
         );
         if (cursor == null) {
-            pendingResult.success(null);
+            result.success(null);
             return;
         }
         try {
             if (cursor.moveToFirst()) {
-                pendingResult.success(cursor.getBlob(0));
+                result.success(cursor.getBlob(0));
             } else {
-                pendingResult.success(null);
+                result.success(null);
             }
         } finally {
             cursor.close();
@@ -160,8 +177,8 @@ public class ContactPhotoQuery
     }
 
     @TargetApi(Build.VERSION_CODES.ECLAIR)
-    private void queryContactPhoto() {
-        Uri uri = Uri.withAppendedPath(ContactsContract.AUTHORITY_URI, pendingPhotoUri);
+    private void queryContactPhoto(String photoUri, MethodChannel.Result result) {
+        Uri uri = Uri.withAppendedPath(ContactsContract.AUTHORITY_URI, photoUri);
         try {
             AssetFileDescriptor fd = context.getContentResolver()
                 .openAssetFileDescriptor(uri, "r");
@@ -169,13 +186,13 @@ public class ContactPhotoQuery
                 InputStream stream = fd.createInputStream();
                 byte[] bytes = getBytesFromInputStream(stream);
                 stream.close();
-                pendingResult.success(bytes);
+                result.success(bytes);
             } else {
-                pendingResult.success(null);
+                result.success(null);
             }
         } catch (IOException e) {
             e.printStackTrace();
-            pendingResult.error("IO_ERROR", e.getMessage(), null);
+            result.error("IO_ERROR", e.getMessage(), null);
         }
     }
 
@@ -187,11 +204,26 @@ public class ContactPhotoQuery
         }
         for (int res : grantResults) {
             if (res != PackageManager.PERMISSION_GRANTED) {
-                pendingResult.error("#01", "permission denied", null);
+                for (PendingCalls.Call<PhotoRequest> pending : pendingCalls.takeAwaitingPermission()) {
+                    pending.error("#01", "permission denied", null);
+                }
                 return false;
             }
         }
-        handleContactPhoto();
+        for (PendingCalls.Call<PhotoRequest> pending : pendingCalls.takeAwaitingPermission()) {
+            runQuery(pending);
+        }
         return true;
     }
+
+    // Argumentos de uma chamada "getContactPhoto"
+    private static class PhotoRequest {
+        final String photoUri;
+        final boolean fullSize;
+
+        PhotoRequest(String photoUri, boolean fullSize) {
+            this.photoUri = photoUri;
+            this.fullSize = fullSize;
+        }
+    }
 }
@@ -42,8 +42,8 @@ public class ContactQuery
     private Context context;
     private ActivityPluginBinding activityBinding;
     private Permissions permissions;
-    private MethodChannel.Result pendingResult;
-    private String pendingAddress;
+    // consultas em curso, uma por chamada
+    private final PendingCalls<String> pendingCalls = new PendingCalls<>();
 
     // Registo do canal
     @Override
@@ -98,18 +98,18 @@ public class ContactQuery
             result.error("#02", "missing argument 'address'", null);
             return;
         }
-        pendingResult = result;
-        pendingAddress = call.argument("address");
+        boolean granted = ContextCompat.checkSelfPermission(context, permissionsList[0])
+            == PackageManager.PERMISSION_GRANTED;
+        PendingCalls.Call<String> pending = pendingCalls.add(call.<String>argument("address"), result, !granted);
 
-        if (ContextCompat.checkSelfPermission(context, permissionsList[0])
-            != PackageManager.PERMISSION_GRANTED) {
+        if (!granted) {
             ActivityCompat.requestPermissions(
                 activityBinding.getActivity(),
                 permissionsList,
                 READ_CONTACT_ID_REQ
             );
         } else {
-            queryContact();
+            runQuery(pending);
         }
     }
 
@@ -121,20 +121,39 @@ public class ContactQuery
         }
         for (int res : grantResults) {
             if (res != PackageManager.PERMISSION_GRANTED) {
-                pendingResult.error("#01", "permission denied", null);
+                for (PendingCalls.Call<String> pending : pendingCalls.takeAwaitingPermission()) {
+                    pending.error("#01", "permission denied", null);
+                }
                 return false;
             }
         }
-        queryContact();
+        for (PendingCalls.Call<String> pending : pendingCalls.takeAwaitingPermission()) {
+            runQuery(pending);
+        }
         return true;
     }
 
+    // Executa a consulta no pool de I/O e responde na thread da plataforma
+    private void runQuery(final PendingCalls.Call<String> pending) {
+        SmsExecutors.io().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queryContact(pending.params, pending);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    pending.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
     // Lógica original de consulta de contacto
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-    private void queryContact() {
+    private void queryContact(String address, MethodChannel.Result result) {
         Uri uri = Uri.withAppendedPath(
             ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
-            Uri.encode(pendingAddress)
+            Uri.encode(address)
         );
         String[] projection = {
             ContactsContract.PhoneLookup.DISPLAY_NAME,
@@ -155,6 +174,6 @@ public class ContactQuery
             }
             cursor.close();
         }
-        pendingResult.success(obj);
+        result.success(obj);
     }
 }
@@ -0,0 +1,114 @@
+package com.babariviere.sms;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+
+/**
+ * A message to send, as described by a "sendSMS" call.
+ */
+
+class OutgoingSms {
+    final String address;
+    final String body;
+    final int sentId;
+    // null sends with the default SmsManager
+    final Integer subId;
+    // System.nanoTime() of the call, 0 when unknown
+    final long requestedAt;
+
+    OutgoingSms(String address, String body, int sentId, Integer subId) {
+        this(address, body, sentId, subId, System.nanoTime());
+    }
+
+    OutgoingSms(String address, String body, int sentId, Integer subId, long requestedAt) {
+        this.address = address;
+        this.body = body;
+        this.sentId = sentId;
+        this.subId = subId;
+        this.requestedAt = requestedAt;
+    }
+
+    /**
+     * With {@code transliterate}, chars outside the GSM alphabet are
+     * replaced by their closest GSM spelling so the body takes fewer
+     * segments.
+     */
+    static OutgoingSms fromCall(MethodCall call) {
+        Integer sentId = call.argument("sentId");
+        String body = call.argument("body");
+        return new OutgoingSms(
+            call.<String>argument("address"),
+            body != null && transliterate(call) ? SmsSegmentPlanner.transliterate(body) : body,
+            sentId != null ? sentId : -1,
+            call.<Integer>argument("subId")
+        );
+    }
+
+    /**
+     * Messages of a "sendBatch" call, a list of {@code {address, body,
+     * sentId, subId}} maps. Messages without {@code subId} take the one of
+     * the call, {@code transliterate} applies to every message.
+     *
+     * @throws IllegalArgumentException when a message has no address or body
+     */
+    static List<OutgoingSms> listFromCall(MethodCall call) {
+        Object messages = call.argument("messages");
+        Integer defaultSubId = call.argument("subId");
+        boolean transliterate = transliterate(call);
+        List<OutgoingSms> res = new ArrayList<>();
+        if (messages instanceof JSONArray) {
+            // the send channel uses the JSON codec
+            JSONArray array = (JSONArray) messages;
+            for (int i = 0; i < array.length(); i++) {
+                Object message = array.opt(i);
+                if (!(message instanceof JSONObject)) {
+                    throw new IllegalArgumentException("message " + i + " is not an object");
+                }
+                JSONObject object = (JSONObject) message;
+                res.add(of(
+                    object.isNull("address") ? null : object.optString("address"),
+                    object.isNull("body") ? null : object.optString("body"),
+                    object.optInt("sentId", -1),
+                    object.has("subId") && !object.isNull("subId") ? (Integer) object.optInt("subId", 0) : defaultSubId,
+                    transliterate
+                ));
+            }
+        } else if (messages instanceof List) {
+            for (Object message : (List<?>) messages) {
+                if (!(message instanceof Map)) {
+                    throw new IllegalArgumentException("message " + res.size() + " is not a map");
+                }
+                Map<?, ?> map = (Map<?, ?>) message;
+                Object sentId = map.get("sentId");
+                Object subId = map.get("subId");
+                res.add(of(
+                    (String) map.get("address"),
+                    (String) map.get("body"),
+                    sentId != null ? ((Number) sentId).intValue() : -1,
+                    subId != null ? ((Number) subId).intValue() : defaultSubId,
+                    transliterate
+                ));
+            }
+        } else {
+            throw new IllegalArgumentException("missing messages");
+        }
+        return res;
+    }
+
+    private static boolean transliterate(MethodCall call) {
+        return call.hasArgument("transliterate") && Boolean.TRUE.equals(call.argument("transliterate"));
+    }
+
+    private static OutgoingSms of(String address, String body, int sentId, Integer subId, boolean transliterate) {
+        if (address == null || body == null) {
+            throw new IllegalArgumentException("a message needs an address and a body");
+        }
+        return new OutgoingSms(address, transliterate ? SmsSegmentPlanner.transliterate(body) : body, sentId, subId);
+    }
+}
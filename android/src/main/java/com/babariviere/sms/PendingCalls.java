@@ -0,0 +1,89 @@
+package com.babariviere.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Method calls in flight, each with its own arguments and result.
+ *
+ * A call stays registered until it is answered, so overlapping calls no
+ * longer overwrite each other while they wait for a permission or for a
+ * background query.
+ */
+
+class PendingCalls<P> {
+    private final ConcurrentHashMap<Long, Call<P>> calls = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Registers a call, {@code awaitingPermission} marks it to be run by
+     * the next permission result.
+     */
+    Call<P> add(P params, MethodChannel.Result result, boolean awaitingPermission) {
+        Call<P> call = new Call<>(this, nextId.incrementAndGet(), params, result, awaitingPermission);
+        calls.put(call.id, call);
+        return call;
+    }
+
+    /**
+     * Returns the calls waiting for a permission, each call is returned once.
+     */
+    List<Call<P>> takeAwaitingPermission() {
+        List<Call<P>> res = new ArrayList<>();
+        for (Call<P> call : calls.values()) {
+            if (call.awaitingPermission.compareAndSet(true, false)) {
+                res.add(call);
+            }
+        }
+        return res;
+    }
+
+    int size() {
+        return calls.size();
+    }
+
+    /**
+     * A single call, answering it removes it from the pending calls. Replies
+     * are posted to the platform thread, so a call can be answered from any
+     * thread.
+     */
+    static final class Call<P> implements MethodChannel.Result {
+        final long id;
+        final P params;
+        private final PendingCalls<P> owner;
+        private final MethodChannel.Result result;
+        private final AtomicBoolean awaitingPermission;
+
+        private Call(PendingCalls<P> owner, long id, P params, MethodChannel.Result result,
+                     boolean awaitingPermission) {
+            this.owner = owner;
+            this.id = id;
+            this.params = params;
+            this.result = new SmsExecutors.MainThreadResult(result);
+            this.awaitingPermission = new AtomicBoolean(awaitingPermission);
+        }
+
+        @Override
+        public void success(Object value) {
+            owner.calls.remove(id);
+            result.success(value);
+        }
+
+        @Override
+        public void error(String code, String message, Object details) {
+            owner.calls.remove(id);
+            result.error(code, message, details);
+        }
+
+        @Override
+        public void notImplemented() {
+            owner.calls.remove(id);
+            result.notImplemented();
+        }
+    }
+}
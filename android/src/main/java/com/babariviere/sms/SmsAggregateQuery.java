@@ -0,0 +1,192 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Message and unread counts grouped by thread, address, day or hour.
+ *
+ * The SMS provider has no GROUP BY support, so the counts are made in a
+ * single pass over a cursor holding only the grouping column and the read
+ * flag. Only the aggregated rows cross the channel.
+ */
+
+class SmsAggregateQuery {
+    private static final long HOUR_MS = 60L * 60 * 1000;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private final ContentResolver resolver;
+
+    SmsAggregateQuery(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Arguments are {@code group_by} ("thread", "address", "day" or "hour"),
+     * the optional {@code since} and {@code until} dates (ms) and the
+     * {@code kinds}, {@code thread_id} and {@code address} filters of
+     * {@code getMessages}. Replies with {@code {count, unread, groups}}, each
+     * group holds its key ({@code thread_id}, {@code address} or the
+     * {@code start} of the bucket in ms), {@code count} and {@code unread}.
+     * Buckets follow the local time zone, a day is 23 or 25 hours long on
+     * DST changes.
+     */
+    void query(MethodCall call, MethodChannel.Result result) {
+        String groupBy = call.hasArgument("group_by") ? (String) call.argument("group_by") : "thread";
+        final String column;
+        final long bucket;
+        switch (groupBy) {
+            case "thread":
+                column = "thread_id";
+                bucket = 0;
+                break;
+            case "address":
+                column = "address";
+                bucket = 0;
+                break;
+            case "day":
+                column = "date";
+                bucket = DAY_MS;
+                break;
+            case "hour":
+                column = "date";
+                bucket = HOUR_MS;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown group_by '" + groupBy + "'");
+        }
+
+        SmsQueryParams params = SmsQueryParams.fromCall(null, call);
+        SmsQueryEngine.Selection selection = SmsQueryEngine.buildSelection(params);
+        if (call.hasArgument("since")) {
+            selection.and("date >= ?", String.valueOf(((Number) call.argument("since")).longValue()));
+        }
+        if (call.hasArgument("until")) {
+            selection.and("date < ?", String.valueOf(((Number) call.argument("until")).longValue()));
+        }
+
+        Cursor cursor = resolver.query(params.uri(), new String[]{ column, "read" },
+            selection.sql, selection.argsArray(), null);
+        if (cursor == null) {
+            result.error("#01", "permission denied", null);
+            return;
+        }
+
+        Map<Object, Group> groups = new HashMap<>();
+        int count = 0;
+        int unread = 0;
+        Calendar calendar = Calendar.getInstance(TimeZone.getDefault());
+        // bounds of the last bucket, rows mostly come in date order
+        long bucketStart = 0;
+        long bucketEnd = 0;
+        try {
+            while (cursor.moveToNext()) {
+                Object key;
+                if (bucket > 0) {
+                    long date = cursor.getLong(0);
+                    if (date < bucketStart || date >= bucketEnd) {
+                        calendar.setTimeInMillis(date);
+                        truncate(calendar, bucket);
+                        bucketStart = calendar.getTimeInMillis();
+                        calendar.add(bucket == DAY_MS ? Calendar.DAY_OF_MONTH : Calendar.HOUR_OF_DAY, 1);
+                        bucketEnd = calendar.getTimeInMillis();
+                    }
+                    key = bucketStart;
+                } else if ("thread_id".equals(column)) {
+                    key = cursor.getLong(0);
+                } else {
+                    key = cursor.getString(0);
+                }
+                Group group = groups.get(key);
+                if (group == null) {
+                    group = new Group(key);
+                    groups.put(key, group);
+                }
+                boolean isUnread = cursor.getInt(1) == 0;
+                group.count++;
+                count++;
+                if (isUnread) {
+                    group.unread++;
+                    unread++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<Group> sorted = new ArrayList<>(groups.values());
+        Collections.sort(sorted, bucket > 0 ? Group.BY_START : Group.BY_COUNT);
+        String keyName = bucket > 0 ? "start" : column;
+        try {
+            JSONArray rows = new JSONArray();
+            for (Group group : sorted) {
+                JSONObject row = new JSONObject();
+                row.put(keyName, group.key == null ? JSONObject.NULL : group.key);
+                row.put("count", group.count);
+                row.put("unread", group.unread);
+                rows.put(row);
+            }
+            JSONObject res = new JSONObject();
+            res.put("count", count);
+            res.put("unread", unread);
+            res.put("groups", rows);
+            result.success(res);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        }
+    }
+
+    /**
+     * Truncates {@code calendar} to the start of its local day or hour.
+     */
+    private static void truncate(Calendar calendar, long bucket) {
+        if (bucket == DAY_MS) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+    }
+
+    private static class Group {
+        // most messages first
+        static final Comparator<Group> BY_COUNT = new Comparator<Group>() {
+            @Override
+            public int compare(Group a, Group b) {
+                return b.count - a.count;
+            }
+        };
+        // oldest bucket first
+        static final Comparator<Group> BY_START = new Comparator<Group>() {
+            @Override
+            public int compare(Group a, Group b) {
+                return Long.compare((Long) a.key, (Long) b.key);
+            }
+        };
+
+        final Object key;
+        int count;
+        int unread;
+
+        Group(Object key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.babariviere.sms;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compact binary form of a list of rows, an alternative to JSON for large
+ * replies.
+ *
+ * All numbers are little endian:
+ * <pre>
+ *   u8  version (1)
+ *   u16 column count, then per column: u16 length + UTF-8 name
+ *   i32 row count
+ *   rows: per column a u8 tag followed by its value
+ *     0 null
+ *     1 integer, i64
+ *     2 float, f64
+ *     3 string, i32 length + UTF-8 bytes
+ *     4 blob, i32 length + bytes
+ * </pre>
+ * Names are written once per reply instead of once per row, and numbers
+ * are never boxed nor turned into text.
+ */
+
+class SmsBinaryEncoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte VERSION = 1;
+    static final byte TAG_NULL = 0;
+    static final byte TAG_INTEGER = 1;
+    static final byte TAG_FLOAT = 2;
+    static final byte TAG_STRING = 3;
+    static final byte TAG_BLOB = 4;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private ByteBuffer buffer;
+    private final int rowCountPosition;
+    private int rows;
+
+    SmsBinaryEncoder(String[] columns) {
+        buffer = ByteBuffer.allocate(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(columns);
+        ensure(4);
+        rowCountPosition = buffer.position();
+        buffer.putInt(0);
+    }
+
+    private SmsBinaryEncoder() {
+        buffer = ByteBuffer.allocate(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        rowCountPosition = -1;
+    }
+
+    /**
+     * Encoder of bare rows, without header nor row count, for formats that
+     * frame rows themselves. See {@link #written()} and {@link #clear()},
+     * it can't be finished.
+     */
+    static SmsBinaryEncoder rows() {
+        return new SmsBinaryEncoder();
+    }
+
+    /**
+     * Version and column dictionary, as found at the start of a buffer.
+     */
+    static byte[] header(String[] columns) {
+        SmsBinaryEncoder encoder = new SmsBinaryEncoder();
+        encoder.writeHeader(columns);
+        return Arrays.copyOf(encoder.buffer.array(), encoder.buffer.position());
+    }
+
+    private void writeHeader(String[] columns) {
+        ensure(3);
+        buffer.put(VERSION);
+        buffer.putShort((short) columns.length);
+        for (String column : columns) {
+            byte[] name = column.getBytes(UTF_8);
+            ensure(2 + name.length);
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+    }
+
+    /**
+     * Ends the current row, every column must have been written.
+     */
+    void endRow() {
+        rows++;
+    }
+
+    int rowCount() {
+        return rows;
+    }
+
+    void putNull() {
+        ensure(1);
+        buffer.put(TAG_NULL);
+    }
+
+    void putLong(long value) {
+        ensure(9);
+        buffer.put(TAG_INTEGER);
+        buffer.putLong(value);
+    }
+
+    void putDouble(double value) {
+        ensure(9);
+        buffer.put(TAG_FLOAT);
+        buffer.putDouble(value);
+    }
+
+    void putString(String value) {
+        if (value == null) {
+            putNull();
+            return;
+        }
+        putBytes(TAG_STRING, value.getBytes(UTF_8));
+    }
+
+    void putBlob(byte[] value) {
+        if (value == null) {
+            putNull();
+            return;
+        }
+        putBytes(TAG_BLOB, value);
+    }
+
+    /**
+     * Writes a value of any of the supported types, for rows that don't come
+     * from a cursor.
+     */
+    void put(Object value) {
+        if (value == null) {
+            putNull();
+        } else if (value instanceof Double || value instanceof Float) {
+            putDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            putLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            putLong((Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            putBlob((byte[]) value);
+        } else {
+            putString(value.toString());
+        }
+    }
+
+    /**
+     * Bytes written since the last {@link #clear()}, ready to be read.
+     */
+    ByteBuffer written() {
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        return written;
+    }
+
+    void clear() {
+        buffer.clear();
+        rows = 0;
+    }
+
+    /**
+     * Returns the encoded rows, the encoder can't be used afterwards.
+     */
+    byte[] finish() {
+        if (rowCountPosition < 0) {
+            throw new IllegalStateException("an encoder of bare rows has no row count to finish, use written()");
+        }
+        buffer.putInt(rowCountPosition, rows);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void putBytes(byte tag, byte[] bytes) {
+        ensure(5 + bytes.length);
+        buffer.put(tag);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < bytes) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,264 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches {@code content://sms} and {@code content://mms-sms} and reports
+ * coalesced changes to its listeners.
+ *
+ * Providers send a notification per row, often several per message, so
+ * notifications are gathered until none arrived for the debounce window
+ * (or at most {@code MAX_LATENCY_FACTOR} windows after the first one), then
+ * the listeners get one {@link SmsChangeSet}. Thread ids of the changed
+ * rows are resolved with a single query before delivery. Everything runs on
+ * the monitor thread, listeners are called there too.
+ *
+ * The SMS provider also notifies {@code content://mms-sms/} and
+ * {@code content://mms-sms/conversations/} without an id on every write.
+ * Such a notification only makes the window full when no other one named a
+ * message or a thread.
+ *
+ * The observer is only registered while there are listeners.
+ */
+
+class SmsChangeMonitor {
+    private static final String TAG = "SmsChangeMonitor";
+    private static final Uri SMS_URI = Uri.parse("content://sms");
+    private static final Uri MMS_SMS_URI = Uri.parse("content://mms-sms");
+    static final long DEFAULT_WINDOW_MS = 250;
+    private static final int MAX_LATENCY_FACTOR = 4;
+    // stays below the SQLite limit of 999 bound arguments
+    private static final int MAX_ARGS = 500;
+
+    interface Listener {
+        /**
+         * Called on the monitor thread.
+         */
+        void onSmsChanged(SmsChangeSet changes);
+    }
+
+    private static SmsChangeMonitor instance;
+
+    private final ContentResolver resolver;
+    private final Handler handler;
+    private final ContentObserver observer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long windowMs = DEFAULT_WINDOW_MS;
+    private boolean registered;
+
+    // only touched on the monitor thread
+    private SmsChangeSet pending;
+    private long firstChangeAt;
+    // an id-less mms-sms notification was seen in the window
+    private boolean pendingVague;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            SmsChangeSet changes = pending;
+            pending = null;
+            if (changes != null && pendingVague && changes.isEmpty()) {
+                changes.setFull();
+            }
+            pendingVague = false;
+            if (changes == null || changes.isEmpty()) {
+                return;
+            }
+            resolveThreads(changes);
+            for (Listener listener : listeners) {
+                try {
+                    listener.onSmsChanged(changes);
+                } catch (RuntimeException e) {
+                    Log.d(TAG, e.toString());
+                }
+            }
+        }
+    };
+
+    private SmsChangeMonitor(Context context) {
+        resolver = context.getContentResolver();
+        HandlerThread thread = new HandlerThread("sms-changes");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                record(uri);
+            }
+        };
+    }
+
+    static synchronized SmsChangeMonitor get(Context context) {
+        if (instance == null) {
+            instance = new SmsChangeMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        if (!registered) {
+            resolver.registerContentObserver(SMS_URI, true, observer);
+            resolver.registerContentObserver(MMS_SMS_URI, true, observer);
+            registered = true;
+        }
+    }
+
+    synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && registered) {
+            resolver.unregisterContentObserver(observer);
+            registered = false;
+        }
+    }
+
+    /**
+     * Sets the debounce window, values lower than 0 restore the default.
+     */
+    void setWindow(long windowMs) {
+        this.windowMs = windowMs < 0 ? DEFAULT_WINDOW_MS : windowMs;
+    }
+
+    /**
+     * Reports a change made by the plugin itself, merged with the provider
+     * notifications of the same window so listeners get a single summary.
+     */
+    void notifyLocalChange(final SmsChangeSet changes) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                pending().addAll(changes);
+                schedule();
+            }
+        });
+    }
+
+    private void record(Uri uri) {
+        if (isVague(uri)) {
+            pending();
+            pendingVague = true;
+        } else {
+            parse(uri, pending());
+        }
+        schedule();
+    }
+
+    /**
+     * {@code content://mms-sms/} or {@code content://mms-sms/conversations/},
+     * which the SMS provider notifies along with the row.
+     */
+    private static boolean isVague(Uri uri) {
+        if (uri == null || !"mms-sms".equals(uri.getAuthority())) {
+            return false;
+        }
+        List<String> segments = uri.getPathSegments();
+        return segments.isEmpty() || (segments.size() == 1 && "conversations".equals(segments.get(0)));
+    }
+
+    private SmsChangeSet pending() {
+        if (pending == null) {
+            pending = new SmsChangeSet();
+            firstChangeAt = SystemClock.uptimeMillis();
+        }
+        return pending;
+    }
+
+    private void schedule() {
+        long now = SystemClock.uptimeMillis();
+        // a steady trickle of notifications must not hold the summary forever
+        long window = windowMs;
+        long delay = Math.min(window, firstChangeAt + window * MAX_LATENCY_FACTOR - now);
+        handler.removeCallbacks(flush);
+        handler.postDelayed(flush, Math.max(delay, 0));
+    }
+
+    /**
+     * Reads the row or thread id out of a notification uri, such as
+     * {@code content://sms/inbox/12} or {@code content://mms-sms/conversations/3}.
+     */
+    private static void parse(Uri uri, SmsChangeSet changes) {
+        if (uri == null) {
+            changes.setFull();
+            return;
+        }
+        List<String> segments = uri.getPathSegments();
+        long id = segments.isEmpty() ? -1 : parseId(segments.get(segments.size() - 1));
+        if (id < 0) {
+            changes.setFull();
+        } else if (segments.contains("conversations")) {
+            changes.addThread(id);
+        } else if ("sms".equals(uri.getAuthority())) {
+            changes.addRow(id);
+        } else {
+            changes.setFull();
+        }
+    }
+
+    private static long parseId(String segment) {
+        try {
+            return Long.parseLong(segment);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the threads of the changed rows, deleted rows are not found and
+     * only their id is reported.
+     */
+    private void resolveThreads(SmsChangeSet changes) {
+        if (changes.full || changes.rowIds.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        for (long id : changes.rowIds) {
+            ids.add(String.valueOf(id));
+        }
+        int found = 0;
+        for (int from = 0; from < ids.size(); from += MAX_ARGS) {
+            SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+            selection.andIn("_id", ids.subList(from, Math.min(from + MAX_ARGS, ids.size())).toArray(new String[0]));
+            Cursor cursor;
+            try {
+                cursor = resolver.query(SMS_URI, new String[]{ "thread_id" },
+                    selection.sql, selection.argsArray(), null);
+            } catch (RuntimeException e) {
+                // READ_SMS is not granted, the row ids are still useful
+                Log.d(TAG, e.toString());
+                cursor = null;
+            }
+            if (cursor == null) {
+                changes.unresolvedRows = true;
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    changes.addThread(cursor.getLong(0));
+                    found++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (found < ids.size()) {
+            changes.unresolvedRows = true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.babariviere.sms;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Summary of the changes of the SMS store seen during one debounce window.
+ *
+ * {@code full} is set when a notification did not name a message or a
+ * thread (or when too many did), the whole store must then be considered
+ * changed.
+ */
+
+class SmsChangeSet {
+    // above this, a summary costs more than a full refresh
+    static final int MAX_IDS = 1000;
+
+    final Set<Long> rowIds = new LinkedHashSet<>();
+    final Set<Long> threadIds = new LinkedHashSet<>();
+    boolean full;
+    // some changed rows were not found, their threads are unknown
+    boolean unresolvedRows;
+
+    static SmsChangeSet everything() {
+        SmsChangeSet changes = new SmsChangeSet();
+        changes.full = true;
+        return changes;
+    }
+
+    static SmsChangeSet ofThreads(Long... threadIds) {
+        SmsChangeSet changes = new SmsChangeSet();
+        Collections.addAll(changes.threadIds, threadIds);
+        return changes;
+    }
+
+    void addRow(long id) {
+        if (!full) {
+            rowIds.add(id);
+            trim();
+        }
+    }
+
+    void addThread(long id) {
+        if (!full) {
+            threadIds.add(id);
+            trim();
+        }
+    }
+
+    void addAll(SmsChangeSet other) {
+        if (other.full) {
+            setFull();
+            return;
+        }
+        unresolvedRows |= other.unresolvedRows;
+        for (long id : other.rowIds) {
+            addRow(id);
+        }
+        for (long id : other.threadIds) {
+            addThread(id);
+        }
+    }
+
+    void setFull() {
+        full = true;
+        unresolvedRows = false;
+        rowIds.clear();
+        threadIds.clear();
+    }
+
+    boolean isEmpty() {
+        return !full && rowIds.isEmpty() && threadIds.isEmpty();
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("full", full);
+        res.put("ids", new JSONArray(rowIds));
+        res.put("thread_ids", new JSONArray(threadIds));
+        return res;
+    }
+
+    private void trim() {
+        if (rowIds.size() + threadIds.size() > MAX_IDS) {
+            setFull();
+        }
+    }
+}
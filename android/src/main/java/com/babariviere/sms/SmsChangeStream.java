@@ -0,0 +1,67 @@
+package com.babariviere.sms;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.MethodCall;
+
+/**
+ * Streams the changes of the SMS store, one event per debounce window:
+ * {@code {full, ids, thread_ids}}.
+ *
+ * The optional listen argument {@code window_ms} sets the debounce window.
+ */
+
+class SmsChangeStream implements EventChannel.StreamHandler, SmsChangeMonitor.Listener {
+    private static final String TAG = "SmsChangeStream";
+
+    private final SmsChangeMonitor monitor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile EventChannel.EventSink sink;
+
+    SmsChangeStream(Context context) {
+        this.monitor = SmsChangeMonitor.get(context);
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        MethodCall call = new MethodCall("changes", arguments);
+        if (call.hasArgument("window_ms")) {
+            monitor.setWindow(((Number) call.argument("window_ms")).longValue());
+        }
+        sink = events;
+        monitor.addListener(this);
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        monitor.removeListener(this);
+        sink = null;
+    }
+
+    @Override
+    public void onSmsChanged(SmsChangeSet changes) {
+        final JSONObject event;
+        try {
+            event = changes.toJson();
+        } catch (JSONException e) {
+            Log.d(TAG, e.toString());
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                EventChannel.EventSink events = sink;
+                if (events != null) {
+                    events.success(event);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,170 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Computes the changes of the SMS store since a {@link SmsChangeToken}.
+ *
+ * Rows inserted or updated after the high-water marks of the token are
+ * returned in full, as are older rows that entered the filtered set since
+ * (an outbox message that was sent, a draft sent later). Those and the
+ * deletions are found by comparing the ids of the store with the ranges of
+ * the token. The id scan only reads the {@code _id} and {@code date}
+ * columns.
+ */
+
+class SmsChangeSync {
+    // stays below the SQLite limit of 999 bound arguments
+    private static final int MAX_ARGS = 500;
+
+    private final ContentResolver resolver;
+
+    SmsChangeSync(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Arguments are {@code token} (null for a first sync, which returns
+     * every row), plus the {@code kinds}, {@code thread_id}, {@code address},
+     * {@code columns} and {@code body_length} filters of {@code getMessages}.
+     * Replies with {@code {changed, deleted, token}}.
+     *
+     * @throws IllegalArgumentException when the token is invalid or was
+     * made with other filters
+     */
+    void query(MethodCall call, MethodChannel.Result result) {
+        String rawToken = call.hasArgument("token") ? (String) call.argument("token") : null;
+        SmsQueryParams params = SmsQueryParams.fromCall(null, call);
+        Uri uri = params.uri();
+        SmsQueryEngine.Selection filter = SmsQueryEngine.buildSelection(params);
+        int filterHash = SmsChangeToken.filterHash(uri.toString(), filter);
+        SmsChangeToken since = rawToken != null ? SmsChangeToken.decode(rawToken) : SmsChangeToken.empty(filterHash);
+        if (since.filterHash != filterHash) {
+            throw new IllegalArgumentException("change token was made with other filters");
+        }
+
+        // 1) current ids, rows inserted after this scan are left for the next sync
+        SmsChangeToken.Builder builder = new SmsChangeToken.Builder(filterHash);
+        Cursor cursor = resolver.query(uri, new String[]{ "_id", "date" },
+            filter.sql, filter.argsArray(), "_id ASC");
+        if (cursor == null) {
+            result.error("#01", "permission denied", null);
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                builder.add(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        SmsChangeToken current = builder.build();
+
+        try {
+            JSONObject res = new JSONObject();
+            res.put("changed", queryChanged(uri, params, since, current));
+            JSONArray deleted = new JSONArray();
+            for (long[] range : difference(since, current)) {
+                addRange(deleted, range[0], range[1]);
+            }
+            res.put("deleted", deleted);
+            res.put("token", current.encode());
+            result.success(res);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        }
+    }
+
+    private JSONArray queryChanged(Uri uri, SmsQueryParams params, SmsChangeToken since,
+                                   SmsChangeToken current) throws JSONException {
+        JSONArray changed = new JSONArray();
+        if (current.maxId < 0) {
+            return changed;
+        }
+        SmsQueryEngine.Selection selection = SmsQueryEngine.buildSelection(params);
+        selection.and("_id > ? OR date > ?", String.valueOf(since.maxId), String.valueOf(since.maxDate));
+        selection.and("_id <= ?", String.valueOf(current.maxId));
+        Cursor cursor = resolver.query(uri, params.columns, selection.sql, selection.argsArray(), "_id ASC");
+        if (cursor == null) {
+            return changed;
+        }
+        decodeAll(cursor, params, changed);
+
+        // rows that entered the filtered set with an old id and date
+        List<String> entered = new ArrayList<>();
+        for (long[] range : difference(current, since)) {
+            for (long id = range[0]; id <= Math.min(range[1], since.maxId); id++) {
+                entered.add(String.valueOf(id));
+            }
+        }
+        for (int from = 0; from < entered.size(); from += MAX_ARGS) {
+            SmsQueryEngine.Selection chunk = SmsQueryEngine.buildSelection(params);
+            // newer dates were read above
+            chunk.and("date <= ?", String.valueOf(since.maxDate));
+            chunk.andIn("_id",
+                entered.subList(from, Math.min(from + MAX_ARGS, entered.size())).toArray(new String[0]));
+            decodeAll(resolver.query(uri, params.columns, chunk.sql, chunk.argsArray(), "_id ASC"), params, changed);
+        }
+        return changed;
+    }
+
+    private static void decodeAll(Cursor cursor, SmsQueryParams params, JSONArray rows) throws JSONException {
+        if (cursor == null) {
+            return;
+        }
+        try {
+            SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+            while (cursor.moveToNext()) {
+                rows.put(decoder.decode());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Inclusive ranges of the ids of {@code a} missing from {@code b},
+     * found by walking both range lists once.
+     */
+    private static List<long[]> difference(SmsChangeToken a, SmsChangeToken b) {
+        List<long[]> res = new ArrayList<>();
+        int j = 0;
+        for (int i = 0; i < a.rangeCount; i++) {
+            long id = a.starts[i];
+            long end = a.ends[i];
+            while (id <= end) {
+                while (j < b.rangeCount && b.ends[j] < id) {
+                    j++;
+                }
+                if (j == b.rangeCount || b.starts[j] > end) {
+                    res.add(new long[]{ id, end });
+                    break;
+                }
+                if (b.starts[j] > id) {
+                    res.add(new long[]{ id, b.starts[j] - 1 });
+                }
+                id = b.ends[j] + 1;
+            }
+        }
+        return res;
+    }
+
+    private static void addRange(JSONArray ids, long from, long to) {
+        for (long id = from; id <= to; id++) {
+            ids.put(id);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.babariviere.sms;
+
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sync state handed out by {@code getChangesSince}.
+ *
+ * It holds the high-water marks of {@code _id} and {@code date}, and the
+ * set of ids known to the caller as sorted ranges. Ids are allocated in
+ * increasing order, so a mailbox is a handful of ranges and the token
+ * stays small.
+ *
+ * It also holds a hash of the filter it was made with (uri, selection and
+ * its arguments), a token is only valid with the same filter.
+ */
+
+class SmsChangeToken {
+    // 2: filter hash
+    private static final int VERSION = 2;
+    private static final int FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    final int filterHash;
+    final long maxId;
+    final long maxDate;
+    // inclusive ranges, starts[i] <= ends[i] < starts[i + 1]
+    final long[] starts;
+    final long[] ends;
+    final int rangeCount;
+
+    private SmsChangeToken(int filterHash, long maxId, long maxDate, long[] starts, long[] ends,
+                           int rangeCount) {
+        this.filterHash = filterHash;
+        this.maxId = maxId;
+        this.maxDate = maxDate;
+        this.starts = starts;
+        this.ends = ends;
+        this.rangeCount = rangeCount;
+    }
+
+    /**
+     * Token of an empty mailbox, every row is a change against it.
+     */
+    static SmsChangeToken empty(int filterHash) {
+        return new SmsChangeToken(filterHash, -1, -1, new long[0], new long[0], 0);
+    }
+
+    static int filterHash(String uri, SmsQueryEngine.Selection selection) {
+        StringBuilder filter = new StringBuilder(uri).append('\n').append(selection.sql);
+        for (String arg : selection.args) {
+            filter.append('\n').append(arg);
+        }
+        return filter.toString().hashCode();
+    }
+
+    String encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeInt(filterHash);
+            writeVarLong(out, maxId + 1);
+            writeVarLong(out, maxDate + 1);
+            writeVarLong(out, rangeCount);
+            long previous = 0;
+            for (int i = 0; i < rangeCount; i++) {
+                // gaps and lengths are small positive numbers
+                writeVarLong(out, starts[i] - previous);
+                writeVarLong(out, ends[i] - starts[i]);
+                previous = ends[i];
+            }
+            out.flush();
+            return Base64.encodeToString(bytes.toByteArray(), FLAGS);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static SmsChangeToken decode(String token) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decode(token, FLAGS)));
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("invalid change token");
+            }
+            int filterHash = in.readInt();
+            long maxId = readVarLong(in) - 1;
+            long maxDate = readVarLong(in) - 1;
+            int count = (int) readVarLong(in);
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                starts[i] = previous + readVarLong(in);
+                ends[i] = starts[i] + readVarLong(in);
+                previous = ends[i];
+            }
+            return new SmsChangeToken(filterHash, maxId, maxDate, starts, ends, count);
+        } catch (IOException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("invalid change token");
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * Builds a token from ids given in increasing order.
+     */
+    static class Builder {
+        private final int filterHash;
+        private long[] starts = new long[16];
+        private long[] ends = new long[16];
+        private int count;
+        private long maxId = -1;
+        private long maxDate = -1;
+
+        Builder(int filterHash) {
+            this.filterHash = filterHash;
+        }
+
+        void add(long id, long date) {
+            if (count > 0 && ends[count - 1] + 1 == id) {
+                ends[count - 1] = id;
+            } else {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = id;
+                ends[count] = id;
+                count++;
+            }
+            maxId = Math.max(maxId, id);
+            maxDate = Math.max(maxDate, date);
+        }
+
+        SmsChangeToken build() {
+            return new SmsChangeToken(filterHash, maxId, maxDate, starts, ends, count);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+import io.flutter.plugin.common.JSONMethodCodec;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.StandardMethodCodec;
+
+/**
+ * Measures the cost of sending the same query result as JSON objects
+ * through {@link JSONMethodCodec} and as a {@link SmsBinaryEncoder} buffer
+ * through {@link StandardMethodCodec}.
+ *
+ * Both paths start from an open cursor and end with the encoded channel
+ * message, so provider time is left out.
+ */
+
+class SmsCodecComparison {
+    private final ContentResolver resolver;
+
+    SmsCodecComparison(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Replies with {@code {rows, json: {bytes, ms}, binary: {bytes, ms}}}.
+     */
+    void compare(SmsQueryParams params, MethodChannel.Result result) {
+        try {
+            JSONObject res = new JSONObject();
+            Cursor cursor = query(params);
+            if (cursor == null) {
+                result.error("#01", "permission denied", null);
+                return;
+            }
+            JSONArray rows = new JSONArray();
+            long start;
+            try {
+                start = System.nanoTime();
+                SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+                while (cursor.moveToNext()) {
+                    rows.put(decoder.decode());
+                }
+            } finally {
+                cursor.close();
+            }
+            ByteBuffer json = JSONMethodCodec.INSTANCE.encodeSuccessEnvelope(rows);
+            res.put("json", measure(json, start));
+
+            cursor = query(params);
+            if (cursor == null) {
+                result.error("#01", "permission denied", null);
+                return;
+            }
+            byte[] bytes;
+            try {
+                start = System.nanoTime();
+                SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+                SmsBinaryEncoder encoder = new SmsBinaryEncoder(decoder.columnNames());
+                while (cursor.moveToNext()) {
+                    decoder.encode(encoder);
+                }
+                bytes = encoder.finish();
+            } finally {
+                cursor.close();
+            }
+            ByteBuffer binary = StandardMethodCodec.INSTANCE.encodeSuccessEnvelope(bytes);
+            res.put("binary", measure(binary, start));
+            res.put("rows", rows.length());
+            result.success(res);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        }
+    }
+
+    private Cursor query(SmsQueryParams params) {
+        return new SmsQueryEngine(resolver).query(params);
+    }
+
+    private static JSONObject measure(ByteBuffer message, long start) throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("ms", (System.nanoTime() - start) / 1e6);
+        // the codecs allocate the message to its exact size
+        res.put("bytes", message.capacity());
+        return res;
+    }
+}
@@ -0,0 +1,150 @@
+package com.babariviere.sms;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Thread pools used by the plugin, so content provider I/O never runs on
+ * the platform thread.
+ *
+ * Interactive queries run on {@link #io()}. Jobs that scan the whole store
+ * or a file (exports, imports, change syncs, streams) run on
+ * {@link #jobs()}, so a few of them never hold back a page query. Rows are
+ * decoded while the cursor is read, the cursor fills its window lazily,
+ * so decoding and encoding replies run on the pool of the query. Both
+ * pools are bounded and can be resized with {@link #configure(int, int)}.
+ */
+
+public final class SmsExecutors {
+    private static final int DEFAULT_IO_THREADS = 4;
+    private static final int DEFAULT_JOB_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor io;
+    private static ThreadPoolExecutor jobs;
+    private static Handler mainHandler;
+
+    private SmsExecutors() {
+    }
+
+    /**
+     * Pool for content provider and file I/O.
+     */
+    static synchronized ThreadPoolExecutor io() {
+        if (io == null) {
+            io = newPool("sms-io", DEFAULT_IO_THREADS);
+        }
+        return io;
+    }
+
+    /**
+     * Pool for long running jobs, jobs beyond its size wait in line.
+     */
+    static synchronized ThreadPoolExecutor jobs() {
+        if (jobs == null) {
+            jobs = newPool("sms-jobs", DEFAULT_JOB_THREADS);
+        }
+        return jobs;
+    }
+
+    /**
+     * Sets the size of both pools, values lower than 1 keep the current size.
+     */
+    public static synchronized void configure(int ioThreads, int jobThreads) {
+        if (ioThreads > 0) {
+            resize(io(), ioThreads);
+        }
+        if (jobThreads > 0) {
+            resize(jobs(), jobThreads);
+        }
+    }
+
+    static synchronized void runOnMain(Runnable runnable) {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        mainHandler.post(runnable);
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int threads) {
+        // order matters, the core size can't go above the maximum size
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    private static ThreadPoolExecutor newPool(final String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            threads,
+            threads,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Forwards a method call result to the platform thread.
+     */
+    static class MainThreadResult implements MethodChannel.Result {
+        private final MethodChannel.Result result;
+
+        MainThreadResult(MethodChannel.Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void success(final Object value) {
+            runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    result.success(value);
+                }
+            });
+        }
+
+        @Override
+        public void error(final String code, final String message, final Object details) {
+            runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    result.error(code, message, details);
+                }
+            });
+        }
+
+        @Override
+        public void notImplemented() {
+            runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    result.notImplemented();
+                }
+            });
+        }
+    }
+}
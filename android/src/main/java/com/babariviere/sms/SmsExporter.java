@@ -0,0 +1,209 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Writes the SMS store to a file, row by row, so the heap use does not
+ * depend on the size of the mailbox.
+ *
+ * Formats:
+ * <ul>
+ *   <li>{@code ndjson}: one JSON object per line, as returned by the queries.</li>
+ *   <li>{@code binary}: the {@link SmsBinaryEncoder} header (version and
+ *   column dictionary), then one record per row: i32 length (little endian)
+ *   followed by the cells of the row.</li>
+ * </ul>
+ * The file is written next to its final path and renamed once complete.
+ */
+
+class SmsExporter {
+    static final String FORMAT_NDJSON = "ndjson";
+    static final String FORMAT_BINARY = "binary";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String OPERATION = "export";
+
+    private final ContentResolver resolver;
+    private final SmsProgressStream progress = SmsProgressStream.get();
+
+    SmsExporter(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Arguments are {@code path} (absolute), {@code format} ("ndjson" by
+     * default or "binary") and the {@code kinds}, {@code thread_id},
+     * {@code address} and {@code columns} filters of {@code getMessages}.
+     * Replies with {@code {path, rows, bytes}}, progress is reported on the
+     * progress channel under the "export" operation with the path as id.
+     */
+    void export(MethodCall call, MethodChannel.Result result) {
+        String path = call.argument("path");
+        if (path == null || !new File(path).isAbsolute()) {
+            throw new IllegalArgumentException("path must be absolute");
+        }
+        String format = call.hasArgument("format") ? (String) call.argument("format") : FORMAT_NDJSON;
+        if (!FORMAT_NDJSON.equals(format) && !FORMAT_BINARY.equals(format)) {
+            throw new IllegalArgumentException("unknown format '" + format + "'");
+        }
+        // the export format decides the encoding, not the format argument of queries
+        SmsQueryParams params = SmsQueryParams.fromCall(null, new MethodCall(call.method, withoutFormat(call)));
+
+        Cursor cursor = new SmsQueryEngine(resolver).query(params.uri(), params.projection(), params.columns,
+            SmsQueryEngine.buildSelection(params), "_id ASC", 0, -1);
+        if (cursor == null) {
+            result.error("#01", "permission denied", null);
+            return;
+        }
+        File target = new File(path);
+        File partial = new File(path + ".part");
+        long rows = 0;
+        long bytes;
+        boolean renamed = false;
+        try {
+            FileOutputStream stream = new FileOutputStream(partial);
+            try {
+                Writer writer = new Writer(stream.getChannel());
+                rows = FORMAT_BINARY.equals(format)
+                    ? writeBinary(cursor, params, writer, path)
+                    : writeNdjson(cursor, params, writer, path);
+                writer.flush();
+                bytes = stream.getChannel().position();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            renamed = partial.renameTo(target);
+            if (!renamed) {
+                throw new IOException("can't rename " + partial + " to " + target);
+            }
+            progress.emit(OPERATION, path, rows, rows);
+
+            JSONObject res = new JSONObject();
+            res.put("path", path);
+            res.put("rows", rows);
+            res.put("bytes", bytes);
+            result.success(res);
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        } finally {
+            cursor.close();
+            // runtime failures are reported by the caller, the partial file goes either way
+            if (!renamed) {
+                partial.delete();
+            }
+        }
+    }
+
+    private long writeNdjson(Cursor cursor, SmsQueryParams params, Writer writer, String path)
+            throws IOException, JSONException {
+        SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+        SmsProgressStream.Throttle throttle = new SmsProgressStream.Throttle(SmsProgressStream.DEFAULT_INTERVAL_MS);
+        long total = cursor.getCount();
+        long rows = 0;
+        while (cursor.moveToNext()) {
+            byte[] line = decoder.decode().toString().getBytes(UTF_8);
+            writer.write(ByteBuffer.wrap(line));
+            writer.write((byte) '\n');
+            rows++;
+            if (throttle.ready()) {
+                progress.emit(OPERATION, path, rows, total);
+            }
+        }
+        return rows;
+    }
+
+    private long writeBinary(Cursor cursor, SmsQueryParams params, Writer writer, String path)
+            throws IOException {
+        SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+        SmsBinaryEncoder encoder = SmsBinaryEncoder.rows();
+        ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        SmsProgressStream.Throttle throttle = new SmsProgressStream.Throttle(SmsProgressStream.DEFAULT_INTERVAL_MS);
+        long total = cursor.getCount();
+        long rows = 0;
+        writer.write(ByteBuffer.wrap(SmsBinaryEncoder.header(decoder.columnNames())));
+        while (cursor.moveToNext()) {
+            encoder.clear();
+            decoder.encode(encoder);
+            ByteBuffer row = encoder.written();
+            length.clear();
+            length.putInt(row.remaining());
+            length.flip();
+            writer.write(length);
+            writer.write(row);
+            rows++;
+            if (throttle.ready()) {
+                progress.emit(OPERATION, path, rows, total);
+            }
+        }
+        return rows;
+    }
+
+    private static Object withoutFormat(MethodCall call) {
+        if (!(call.arguments instanceof Map)) {
+            return call.arguments;
+        }
+        Map<Object, Object> copy = new HashMap<Object, Object>((Map<?, ?>) call.arguments);
+        copy.remove("format");
+        return copy;
+    }
+
+    /**
+     * Gathers small writes in a direct buffer, large ones go straight to
+     * the channel.
+     */
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(byte value) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(value);
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            if (data.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (data.remaining() > buffer.capacity()) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                return;
+            }
+            buffer.put(data);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.babariviere.sms;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Restores messages from a file written by {@link SmsExporter}.
+ *
+ * Rows are inserted with {@link ContentResolver#applyBatch} in batches of
+ * {@code batch_size} operations. Batches are not atomic: the SMS provider
+ * doesn't override applyBatch, so each insert is its own transaction and a
+ * failed import keeps the rows inserted before the failure, whose counts
+ * are in the details of the error.
+ * Rows already in the store, or seen earlier in the file, are skipped:
+ * they are recognized by a hash of their address, date, type and body.
+ *
+ * Writing to the SMS provider requires the app to be the default SMS app.
+ */
+
+class SmsImporter {
+    private static final Uri SMS_URI = Uri.parse("content://sms");
+    private static final String AUTHORITY = "sms";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int DEFAULT_BATCH_SIZE = 500;
+    private static final String OPERATION = "import";
+    // columns of an exported row that can be written back, _id and thread_id are assigned by the provider
+    private static final Set<String> WRITABLE_COLUMNS = new HashSet<>(Arrays.asList(
+        "address", "body", "date", "date_sent", "type", "read", "seen", "status", "subject",
+        "service_center", "protocol", "reply_path_present", "locked", "error_code"
+    ));
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final SmsProgressStream progress = SmsProgressStream.get();
+
+    SmsImporter(Context context) {
+        this.context = context;
+        this.resolver = context.getContentResolver();
+    }
+
+    /**
+     * Arguments are {@code path} (absolute), {@code format} ("ndjson" by default or
+     * "binary"), {@code batch_size} and {@code skip_duplicates} (true by
+     * default). Replies with {@code {inserted, skipped}}, progress is
+     * reported on the progress channel under the "import" operation with
+     * the path as id.
+     */
+    void importFile(MethodCall call, MethodChannel.Result result) {
+        if (!TelephonyCompat.isDefaultSmsApp(context)) {
+            result.error("#04", "not the default SMS app", null);
+            return;
+        }
+        String path = call.argument("path");
+        if (path == null || !new File(path).isAbsolute()) {
+            throw new IllegalArgumentException("path must be absolute");
+        }
+        String format = call.hasArgument("format") ? (String) call.argument("format") : SmsExporter.FORMAT_NDJSON;
+        if (!SmsExporter.FORMAT_NDJSON.equals(format) && !SmsExporter.FORMAT_BINARY.equals(format)) {
+            throw new IllegalArgumentException("unknown format '" + format + "'");
+        }
+        int batchSize = call.hasArgument("batch_size") ? ((Number) call.argument("batch_size")).intValue() : DEFAULT_BATCH_SIZE;
+        boolean skipDuplicates = !call.hasArgument("skip_duplicates") || (boolean) call.argument("skip_duplicates");
+        batchSize = Math.max(batchSize, 1);
+
+        Set<Long> known = skipDuplicates ? existingHashes() : null;
+        if (skipDuplicates && known == null) {
+            result.error("#01", "permission denied", null);
+            return;
+        }
+
+        long inserted = 0;
+        long skipped = 0;
+        SmsProgressStream.Throttle throttle = new SmsProgressStream.Throttle(SmsProgressStream.DEFAULT_INTERVAL_MS);
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>(batchSize);
+        try {
+            Source source = open(new File(path), format);
+            try {
+                ContentValues values;
+                while ((values = source.next()) != null) {
+                    if (known != null && !known.add(hash(values))) {
+                        skipped++;
+                        continue;
+                    }
+                    batch.add(ContentProviderOperation.newInsert(SMS_URI).withValues(values).build());
+                    if (batch.size() == batchSize) {
+                        inserted += apply(batch);
+                        if (throttle.ready()) {
+                            progress.emit(OPERATION, path, inserted + skipped, -1);
+                        }
+                    }
+                }
+                inserted += apply(batch);
+            } finally {
+                source.close();
+            }
+            progress.emit(OPERATION, path, inserted + skipped, inserted + skipped);
+
+            JSONObject res = new JSONObject();
+            res.put("inserted", inserted);
+            res.put("skipped", skipped);
+            result.success(res);
+        } catch (IOException | JSONException | RemoteException | OperationApplicationException
+                | RuntimeException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), partial(inserted, skipped));
+        }
+    }
+
+    /**
+     * Details of a failed import, the rows inserted before the failure stay
+     * in the store.
+     */
+    private static JSONObject partial(long inserted, long skipped) {
+        JSONObject res = new JSONObject();
+        try {
+            res.put("inserted", inserted);
+            res.put("skipped", skipped);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return res;
+    }
+
+    private int apply(ArrayList<ContentProviderOperation> batch)
+            throws RemoteException, OperationApplicationException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        int count = resolver.applyBatch(AUTHORITY, batch).length;
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Hashes of the messages already in the store, null when they can't be
+     * read.
+     */
+    private Set<Long> existingHashes() {
+        Cursor cursor = resolver.query(SMS_URI, new String[]{ "address", "date", "type", "body" },
+            null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        Set<Long> hashes = new HashSet<>(Math.max(cursor.getCount() * 2, 16));
+        try {
+            while (cursor.moveToNext()) {
+                hashes.add(hash(cursor.getString(0), cursor.getLong(1), cursor.getLong(2), cursor.getString(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return hashes;
+    }
+
+    private static long hash(ContentValues values) {
+        Long date = values.getAsLong("date");
+        Long type = values.getAsLong("type");
+        return hash(values.getAsString("address"), date != null ? date : 0, type != null ? type : 0,
+            values.getAsString("body"));
+    }
+
+    /**
+     * 64 bit FNV-1a of the identifying fields of a message.
+     */
+    static long hash(String address, long date, long type, String body) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, address);
+        hash = mix(hash, Long.toString(date));
+        hash = mix(hash, Long.toString(type));
+        hash = mix(hash, body);
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        // separator, so that ("ab", "c") and ("a", "bc") differ
+        hash ^= 0xff;
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+
+    private static Source open(File file, String format) throws IOException {
+        if (SmsExporter.FORMAT_NDJSON.equals(format)) {
+            return new NdjsonSource(file);
+        }
+        if (SmsExporter.FORMAT_BINARY.equals(format)) {
+            return new BinarySource(file);
+        }
+        throw new IllegalArgumentException("unknown format '" + format + "'");
+    }
+
+    private static void put(ContentValues values, String column, Object value) {
+        if (!WRITABLE_COLUMNS.contains(column) || value == null) {
+            return;
+        }
+        if (value instanceof Number && !(value instanceof Double || value instanceof Float)) {
+            values.put(column, ((Number) value).longValue());
+        } else {
+            values.put(column, value.toString());
+        }
+    }
+
+    private interface Source extends Closeable {
+        /**
+         * Next row, or null at the end of the file.
+         */
+        ContentValues next() throws IOException;
+    }
+
+    private static class NdjsonSource implements Source {
+        private final BufferedReader reader;
+
+        NdjsonSource(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8), 64 * 1024);
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    JSONObject row = new JSONObject(line);
+                    ContentValues values = new ContentValues();
+                    Iterator<String> keys = row.keys();
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        put(values, key, row.opt(key));
+                    }
+                    return values;
+                } catch (JSONException e) {
+                    throw new IOException("invalid line: " + e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the binary export format from a memory mapped file.
+     */
+    private static class BinarySource implements Source {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final List<String> columns = new ArrayList<>();
+
+        BinarySource(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.get() != 1) {
+                throw new IOException("unsupported version");
+            }
+            int count = buffer.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                columns.add(readString(buffer.getShort() & 0xFFFF));
+            }
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            int end = buffer.getInt() + buffer.position();
+            ContentValues values = new ContentValues();
+            for (String column : columns) {
+                byte tag = buffer.get();
+                switch (tag) {
+                    case SmsBinaryEncoder.TAG_NULL:
+                        break;
+                    case SmsBinaryEncoder.TAG_INTEGER:
+                        put(values, column, buffer.getLong());
+                        break;
+                    case SmsBinaryEncoder.TAG_FLOAT:
+                        put(values, column, buffer.getDouble());
+                        break;
+                    case SmsBinaryEncoder.TAG_STRING:
+                        put(values, column, readString(buffer.getInt()));
+                        break;
+                    case SmsBinaryEncoder.TAG_BLOB:
+                        int length = buffer.getInt();
+                        buffer.position(buffer.position() + length);
+                        break;
+                    default:
+                        throw new IOException("invalid tag " + tag);
+                }
+            }
+            if (buffer.position() != end) {
+                throw new IOException("corrupt record");
+            }
+            return values;
+        }
+
+        private String readString(int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
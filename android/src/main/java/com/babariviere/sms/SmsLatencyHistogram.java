@@ -0,0 +1,107 @@
+package com.babariviere.sms;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of latencies in microseconds, in the spirit of
+ * HdrHistogram: every power of two range is split in {@code SUB_BUCKETS}
+ * linear buckets, so a value is recorded with a relative error below
+ * 1 / {@code SUB_BUCKETS} (about 3%) in a fixed array, without allocation.
+ *
+ * Values above {@code MAX_VALUE} (about 19 hours) are clamped. Not thread
+ * safe, the send queue records and reads it on its own thread.
+ */
+
+class SmsLatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return count;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Value below which {@code percentile} percent of the recorded values
+     * fall, as the middle of its bucket.
+     */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(Math.max(middleOf(i), min), max);
+            }
+        }
+        return max;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long middleOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long low = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return low + ((1L << shift) >> 1);
+    }
+
+    /**
+     * {@code {count, min, max, mean, p50, p90, p99, p999}}, in milliseconds.
+     */
+    JSONObject toJson() throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("count", count);
+        if (count == 0) {
+            return res;
+        }
+        res.put("min", min / 1000.0);
+        res.put("max", max / 1000.0);
+        res.put("mean", sum / 1000.0 / count);
+        res.put("p50", percentile(50) / 1000.0);
+        res.put("p90", percentile(90) / 1000.0);
+        res.put("p99", percentile(99) / 1000.0);
+        res.put("p999", percentile(99.9) / 1000.0);
+        return res;
+    }
+}
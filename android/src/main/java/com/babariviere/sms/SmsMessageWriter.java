@@ -0,0 +1,166 @@
+package com.babariviere.sms;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Marks messages read and deletes messages, in one provider call per
+ * request: a single selection based update/delete, or one
+ * {@link ContentResolver#applyBatch} when a long id list has to be split.
+ *
+ * Listeners of the {@link SmsChangeMonitor} get one summary of the change.
+ * Writing to the SMS provider requires the app to be the default SMS app.
+ */
+
+class SmsMessageWriter {
+    private static final Uri SMS_URI = Uri.parse("content://sms");
+    private static final String AUTHORITY = "sms";
+    // stays below the SQLite limit of 999 bound arguments
+    private static final int MAX_ARGS = 500;
+
+    private final Context context;
+    private final ContentResolver resolver;
+
+    SmsMessageWriter(Context context) {
+        this.context = context;
+        this.resolver = context.getContentResolver();
+    }
+
+    /**
+     * Arguments are {@code ids} and/or {@code thread_id}, and {@code read}
+     * (true by default). Replies with {@code {count}}, the number of
+     * updated messages.
+     */
+    void markRead(MethodCall call, MethodChannel.Result result) {
+        if (!TelephonyCompat.isDefaultSmsApp(context)) {
+            result.error("#04", "not the default SMS app", null);
+            return;
+        }
+        boolean read = !call.hasArgument("read") || (boolean) call.argument("read");
+        SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+        // rows already in that state are not counted
+        selection.and("read = ?", read ? "0" : "1");
+        ContentValues values = new ContentValues();
+        values.put("read", read ? 1 : 0);
+        if (read) {
+            values.put("seen", 1);
+        }
+        run(call, selection, false, values, result);
+    }
+
+    /**
+     * Arguments are any of {@code ids}, {@code thread_id} and
+     * {@code older_than} (date in ms), combined. Replies with
+     * {@code {count}}, the number of deleted messages.
+     */
+    void delete(MethodCall call, MethodChannel.Result result) {
+        if (!TelephonyCompat.isDefaultSmsApp(context)) {
+            result.error("#04", "not the default SMS app", null);
+            return;
+        }
+        SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+        if (call.hasArgument("older_than")) {
+            selection.and("date < ?", String.valueOf(((Number) call.argument("older_than")).longValue()));
+        }
+        run(call, selection, call.hasArgument("older_than"), null, result);
+    }
+
+    /**
+     * Updates with {@code values}, or deletes when null, the rows matching
+     * {@code base} and the {@code ids}/{@code thread_id} arguments,
+     * {@code filtered} tells whether {@code base} narrows the rows by itself.
+     */
+    private void run(MethodCall call, SmsQueryEngine.Selection base, boolean filtered, ContentValues values,
+                     MethodChannel.Result result) {
+        List<?> ids = call.hasArgument("ids") ? (List<?>) call.argument("ids") : null;
+        long threadId = call.hasArgument("thread_id") ? ((Number) call.argument("thread_id")).longValue() : -1;
+        if (ids == null && threadId < 0 && !filtered) {
+            // never touch the whole store by accident
+            throw new IllegalArgumentException("ids, thread_id or older_than is required");
+        }
+        if (threadId >= 0) {
+            base.and("thread_id = ?", String.valueOf(threadId));
+        }
+
+        SmsChangeSet changes = new SmsChangeSet();
+        if (threadId >= 0) {
+            changes.addThread(threadId);
+        }
+        List<SmsQueryEngine.Selection> selections = new ArrayList<>();
+        if (ids == null) {
+            selections.add(base);
+            if (threadId < 0) {
+                changes.setFull();
+            }
+        } else {
+            List<String> idArgs = new ArrayList<>(ids.size());
+            for (Object id : ids) {
+                long value = ((Number) id).longValue();
+                idArgs.add(String.valueOf(value));
+                changes.addRow(value);
+            }
+            for (int from = 0; from < idArgs.size(); from += MAX_ARGS) {
+                SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+                if (base.sql != null) {
+                    selection.and(base.sql, base.args.toArray(new String[0]));
+                }
+                selection.andIn("_id", idArgs.subList(from, Math.min(from + MAX_ARGS, idArgs.size()))
+                    .toArray(new String[0]));
+                selections.add(selection);
+            }
+        }
+
+        int count = 0;
+        try {
+            if (selections.size() == 1) {
+                SmsQueryEngine.Selection selection = selections.get(0);
+                count = values != null
+                    ? resolver.update(SMS_URI, values, selection.sql, selection.argsArray())
+                    : resolver.delete(SMS_URI, selection.sql, selection.argsArray());
+            } else if (!selections.isEmpty()) {
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>(selections.size());
+                for (SmsQueryEngine.Selection selection : selections) {
+                    ContentProviderOperation.Builder builder = values != null
+                        ? ContentProviderOperation.newUpdate(SMS_URI).withValues(values)
+                        : ContentProviderOperation.newDelete(SMS_URI);
+                    operations.add(builder.withSelection(selection.sql, selection.argsArray()).build());
+                }
+                for (ContentProviderResult res : resolver.applyBatch(AUTHORITY, operations)) {
+                    count += res.count != null ? res.count : 0;
+                }
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+            return;
+        }
+
+        if (count > 0) {
+            // the monitor reaches the cache only after its debounce window
+            SmsQueryCache.get(context).invalidate(changes);
+            SmsChangeMonitor.get(context).notifyLocalChange(changes);
+        }
+        try {
+            JSONObject res = new JSONObject();
+            res.put("count", count);
+            result.success(res);
+        } catch (JSONException e) {
+            result.error("#03", e.getMessage(), null);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.babariviere.sms;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of the outgoing messages, in a plugin owned SQLite database, so
+ * queued messages survive the process.
+ *
+ * A message goes through {@code queued -> sending -> sent | failed}, and
+ * back to {@code queued} with a later {@code next_attempt_at} when a
+ * transient failure is retried. {@code last_error} holds the SMS_SENT
+ * result code of the last failure, or one of the {@code ERROR_*} codes.
+ * {@code sent_on} is the subscription of the last attempt, -1 for the
+ * default SmsManager.
+ *
+ * A call may give an idempotency key: the key is journaled with its
+ * message or batch, in the same transaction, and a later call with the
+ * same key within {@code KEY_WINDOW_MS} is answered with the state of the
+ * first one (see {@link #findKey}) instead of being sent again. The most
+ * recent keys are also kept in memory, so retry storms skip the key
+ * lookup.
+ *
+ * Only the send queue thread uses it.
+ */
+
+class SmsOutbox extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "sms_outbox.db";
+    // 2: idempotency keys, 3: sent_on
+    private static final int DATABASE_VERSION = 3;
+    static final String STATE_QUEUED = "queued";
+    static final String STATE_SENDING = "sending";
+    static final String STATE_SENT = "sent";
+    static final String STATE_FAILED = "failed";
+    // no SMS_SENT report came back in time
+    static final int ERROR_TIMEOUT = -101;
+    // the process died while the message was sending, it may have left
+    static final int ERROR_INTERRUPTED = -102;
+    // the SmsManager refused the message
+    static final int ERROR_REJECTED = -103;
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    // a key is remembered this long
+    static final long KEY_WINDOW_MS = 24 * 60 * 60 * 1000;
+    private static final int MAX_CACHED_KEYS = 1000;
+
+    // most recently used keys, a cache of the idempotency table
+    private final Map<String, Key> keys = new LinkedHashMap<String, Key>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    SmsOutbox(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE outbox (_id INTEGER PRIMARY KEY AUTOINCREMENT, address TEXT NOT NULL, "
+            + "body TEXT NOT NULL, sent_id INTEGER, sub_id INTEGER, batch_id TEXT, state TEXT NOT NULL, "
+            + "attempts INTEGER NOT NULL DEFAULT 0, next_attempt_at INTEGER NOT NULL DEFAULT 0, "
+            + "last_error INTEGER, created_at INTEGER NOT NULL, updated_at INTEGER NOT NULL, sent_on INTEGER)");
+        db.execSQL("CREATE INDEX outbox_state ON outbox (state, next_attempt_at)");
+        db.execSQL("CREATE INDEX outbox_batch ON outbox (batch_id)");
+        createKeys(db);
+    }
+
+    private static void createKeys(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE idempotency (idempotency_key TEXT PRIMARY KEY, outbox_id INTEGER, batch_id TEXT, "
+            + "created_at INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // keeps the queued messages
+        if (oldVersion < 2) {
+            db.execSQL("CREATE INDEX outbox_batch ON outbox (batch_id)");
+            createKeys(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE outbox ADD COLUMN sent_on INTEGER");
+        }
+    }
+
+    /**
+     * Journals {@code messages} as queued, with {@code key} when not null,
+     * in one transaction, and returns their ids.
+     */
+    long[] insert(List<OutgoingSms> messages, String batchId, String key) {
+        SQLiteDatabase db = getWritableDatabase();
+        long now = System.currentTimeMillis();
+        long[] ids = new long[messages.size()];
+        SQLiteStatement insert = db.compileStatement("INSERT INTO outbox (address, body, sent_id, sub_id, "
+            + "batch_id, state, created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                OutgoingSms sms = messages.get(i);
+                insert.clearBindings();
+                insert.bindString(1, sms.address);
+                insert.bindString(2, sms.body);
+                insert.bindLong(3, sms.sentId);
+                if (sms.subId != null) {
+                    insert.bindLong(4, sms.subId);
+                }
+                if (batchId != null) {
+                    insert.bindString(5, batchId);
+                }
+                insert.bindString(6, STATE_QUEUED);
+                insert.bindLong(7, now);
+                insert.bindLong(8, now);
+                ids[i] = insert.executeInsert();
+            }
+            if (key != null) {
+                // replaces a key older than the window
+                ContentValues values = new ContentValues();
+                values.put("idempotency_key", key);
+                if (batchId != null) {
+                    values.put("batch_id", batchId);
+                } else {
+                    values.put("outbox_id", ids[0]);
+                }
+                values.put("created_at", now);
+                db.insertWithOnConflict("idempotency", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        if (key != null) {
+            keys.put(key, new Key(batchId == null ? ids[0] : 0, batchId, now));
+        }
+        return ids;
+    }
+
+    /**
+     * State of the message or batch journaled with {@code key} since
+     * {@code since}, null when there is none: {@code {duplicate, id,
+     * sent_id, state, attempts, last_error}} for a message,
+     * {@code {duplicate, batch_id, queued, states: {state: count}}} for a
+     * batch.
+     */
+    JSONObject findKey(String key, long since) throws JSONException {
+        Key found = keys.get(key);
+        if (found == null) {
+            Cursor cursor = getReadableDatabase().query("idempotency",
+                new String[]{ "outbox_id", "batch_id", "created_at" },
+                "idempotency_key = ?", new String[]{ key }, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                found = new Key(cursor.isNull(0) ? 0 : cursor.getLong(0),
+                    cursor.isNull(1) ? null : cursor.getString(1), cursor.getLong(2));
+            } finally {
+                cursor.close();
+            }
+            keys.put(key, found);
+        }
+        if (found.createdAt < since) {
+            return null;
+        }
+
+        JSONObject res = new JSONObject();
+        res.put("duplicate", true);
+        if (found.batchId != null) {
+            res.put("batch_id", found.batchId);
+            JSONObject states = new JSONObject();
+            int total = 0;
+            Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT state, COUNT(*) FROM outbox WHERE batch_id = ? GROUP BY state",
+                new String[]{ found.batchId });
+            try {
+                while (cursor.moveToNext()) {
+                    states.put(cursor.getString(0), cursor.getInt(1));
+                    total += cursor.getInt(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            res.put("queued", total);
+            res.put("states", states);
+            return res;
+        }
+        res.put("id", found.outboxId);
+        Cursor cursor = getReadableDatabase().query("outbox",
+            new String[]{ "sent_id", "state", "attempts", "last_error" },
+            "_id = ?", new String[]{ String.valueOf(found.outboxId) }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                res.put("sent_id", cursor.getInt(0));
+                res.put("state", cursor.getString(1));
+                res.put("attempts", cursor.getInt(2));
+                if (!cursor.isNull(3)) {
+                    res.put("last_error", cursor.getInt(3));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return res;
+    }
+
+    void markSending(long id, int attempts, int sentOn) {
+        ContentValues values = new ContentValues();
+        values.put("attempts", attempts);
+        values.put("sent_on", sentOn);
+        update(id, STATE_SENDING, values);
+    }
+
+    void markSent(long id) {
+        update(id, STATE_SENT, new ContentValues());
+    }
+
+    void markRetry(long id, long nextAttemptAt, int error) {
+        ContentValues values = new ContentValues();
+        values.put("next_attempt_at", nextAttemptAt);
+        values.put("last_error", error);
+        update(id, STATE_QUEUED, values);
+    }
+
+    void markFailed(long id, int error) {
+        ContentValues values = new ContentValues();
+        values.put("last_error", error);
+        update(id, STATE_FAILED, values);
+    }
+
+    private void update(long id, String state, ContentValues values) {
+        values.put("state", state);
+        values.put("updated_at", System.currentTimeMillis());
+        getWritableDatabase().update("outbox", values, "_id = ?", new String[]{ String.valueOf(id) });
+    }
+
+    /**
+     * Messages left queued by a previous process, oldest first. Messages it
+     * left sending are marked failed with {@link #ERROR_INTERRUPTED}: they
+     * may have been sent already.
+     */
+    List<Row> recover() {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("state", STATE_FAILED);
+        values.put("last_error", ERROR_INTERRUPTED);
+        values.put("updated_at", System.currentTimeMillis());
+        db.update("outbox", values, "state = ?", new String[]{ STATE_SENDING });
+
+        List<Row> rows = new ArrayList<>();
+        Cursor cursor = db.query("outbox",
+            new String[]{ "_id", "address", "body", "sent_id", "sub_id", "batch_id", "attempts", "next_attempt_at" },
+            "state = ?", new String[]{ STATE_QUEUED }, null, null, "_id ASC");
+        try {
+            while (cursor.moveToNext()) {
+                OutgoingSms sms = new OutgoingSms(cursor.getString(1), cursor.getString(2), cursor.getInt(3),
+                    cursor.isNull(4) ? null : cursor.getInt(4), 0);
+                rows.add(new Row(cursor.getLong(0), sms, cursor.isNull(5) ? null : cursor.getString(5),
+                    cursor.getInt(6), cursor.getLong(7)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Drops the sent and failed messages last updated before {@code before}.
+     */
+    int prune(long before) {
+        return getWritableDatabase().delete("outbox", "state IN (?, ?) AND updated_at < ?",
+            new String[]{ STATE_SENT, STATE_FAILED, String.valueOf(before) });
+    }
+
+    /**
+     * Number of messages sent or being sent on {@code subId} that were
+     * last updated from {@code since} on.
+     */
+    int countSentOn(int subId, long since) {
+        SQLiteStatement count = getReadableDatabase().compileStatement(
+            "SELECT count(*) FROM outbox WHERE sent_on = ? AND updated_at >= ?");
+        try {
+            count.bindLong(1, subId);
+            count.bindLong(2, since);
+            return (int) count.simpleQueryForLong();
+        } finally {
+            count.close();
+        }
+    }
+
+    /**
+     * Drops the idempotency keys journaled before {@code before}.
+     */
+    int pruneKeys(long before) {
+        keys.clear();
+        return getWritableDatabase().delete("idempotency", "created_at < ?",
+            new String[]{ String.valueOf(before) });
+    }
+
+    /**
+     * Newest messages first, all states when {@code state} is null.
+     */
+    JSONArray list(String state, int limit) throws JSONException {
+        Cursor cursor = getReadableDatabase().query("outbox",
+            new String[]{ "_id", "address", "sent_id", "sub_id", "batch_id", "state", "attempts",
+                "next_attempt_at", "last_error", "created_at", "updated_at", "sent_on" },
+            state != null ? "state = ?" : null, state != null ? new String[]{ state } : null,
+            null, null, "_id DESC", String.valueOf(limit > 0 ? limit : DEFAULT_LIST_LIMIT));
+        JSONArray res = new JSONArray();
+        try {
+            String[] columns = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                JSONObject row = new JSONObject();
+                for (int i = 0; i < columns.length; i++) {
+                    if (cursor.isNull(i)) {
+                        continue;
+                    }
+                    row.put(columns[i], cursor.getType(i) == Cursor.FIELD_TYPE_STRING
+                        ? cursor.getString(i) : cursor.getLong(i));
+                }
+                res.put(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return res;
+    }
+
+    private static class Key {
+        // 0 for a batch
+        final long outboxId;
+        final String batchId;
+        final long createdAt;
+
+        Key(long outboxId, String batchId, long createdAt) {
+            this.outboxId = outboxId;
+            this.batchId = batchId;
+            this.createdAt = createdAt;
+        }
+    }
+
+    static class Row {
+        final long id;
+        final OutgoingSms sms;
+        final String batchId;
+        final int attempts;
+        final long nextAttemptAt;
+
+        Row(long id, OutgoingSms sms, String batchId, int attempts, long nextAttemptAt) {
+            this.id = id;
+            this.sms = sms;
+            this.batchId = batchId;
+            this.attempts = attempts;
+            this.nextAttemptAt = nextAttemptAt;
+        }
+    }
+}
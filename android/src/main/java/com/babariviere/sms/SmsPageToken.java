@@ -0,0 +1,58 @@
+package com.babariviere.sms;
+
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+
+/**
+ * Continuation token of a keyset paginated query.
+ *
+ * A page is ordered by {@code date DESC, _id DESC}, the token holds the
+ * {@code (date, _id)} of the last row returned and the next page starts
+ * strictly after it.
+ */
+
+class SmsPageToken {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String VERSION = "1";
+    private static final int FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    final long date;
+    final long id;
+
+    SmsPageToken(long date, long id) {
+        this.date = date;
+        this.id = id;
+    }
+
+    String encode() {
+        String raw = VERSION + ":" + date + ":" + id;
+        return Base64.encodeToString(raw.getBytes(UTF_8), FLAGS);
+    }
+
+    static SmsPageToken decode(String token) {
+        try {
+            String[] parts = new String(Base64.decode(token, FLAGS), UTF_8).split(":");
+            if (parts.length != 3 || !VERSION.equals(parts[0])) {
+                throw new IllegalArgumentException("invalid page token");
+            }
+            return new SmsPageToken(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (IllegalArgumentException e) {
+            // also covers NumberFormatException and bad base64
+            throw new IllegalArgumentException("invalid page token");
+        }
+    }
+
+    /**
+     * Selection of the rows that come after this token, row values
+     * comparison is not available on every SQLite shipped with Android.
+     */
+    String selection() {
+        return "date < ? OR (date = ? AND _id < ?)";
+    }
+
+    String[] selectionArgs() {
+        String date = String.valueOf(this.date);
+        return new String[]{ date, date, String.valueOf(id) };
+    }
+}
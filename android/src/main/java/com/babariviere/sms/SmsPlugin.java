@@ -11,14 +11,17 @@ import io.flutter.embedding.engine.plugins.activity.ActivityAware;
 import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
 import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.JSONMethodCodec;
+import io.flutter.plugin.common.StandardMethodCodec;
 
 /**
  * SmsPlugin
  */
 public class SmsPlugin implements FlutterPlugin, ActivityAware {
     private static final String CHANNEL_RECV = "plugins.babariviere.com/recvSMS";
+    private static final String CHANNEL_RECV_BINARY = "plugins.babariviere.com/recvSMSBinary";
 
     private EventChannel receiveSmsChannel;
+    private EventChannel receiveSmsBinaryChannel;
     private Context context;
     private ActivityPluginBinding activityBinding;
 
@@ -31,6 +34,12 @@ public class SmsPlugin implements FlutterPlugin, ActivityAware {
             CHANNEL_RECV,
             JSONMethodCodec.INSTANCE
         );
+        // mesmos eventos, codificados pelo SmsBinaryEncoder
+        receiveSmsBinaryChannel = new EventChannel(
+            binding.getBinaryMessenger(),
+            CHANNEL_RECV_BINARY,
+            StandardMethodCodec.INSTANCE
+        );
     }
 
     // 2) Limpa o canal quando o engine é desanexado
@@ -40,6 +49,10 @@ public class SmsPlugin implements FlutterPlugin, ActivityAware {
             receiveSmsChannel.setStreamHandler(null);
             receiveSmsChannel = null;
         }
+        if (receiveSmsBinaryChannel != null) {
+            receiveSmsBinaryChannel.setStreamHandler(null);
+            receiveSmsBinaryChannel = null;
+        }
         context = null;
     }
 
@@ -55,6 +68,7 @@ public class SmsPlugin implements FlutterPlugin, ActivityAware {
             binding
         );
         receiveSmsChannel.setStreamHandler(receiver);
+        receiveSmsBinaryChannel.setStreamHandler(new SmsReceiver(context, binding, true));
     }
 
     // 4) Config change: a Activity foi destruída, mas o plugin permanece vivo
@@ -75,6 +89,7 @@ public class SmsPlugin implements FlutterPlugin, ActivityAware {
             binding
         );
         receiveSmsChannel.setStreamHandler(receiver);
+        receiveSmsBinaryChannel.setStreamHandler(new SmsReceiver(context, binding, true));
     }
 
     // 6) Quando a Activity final é desanexada, limpa o receiver
@@ -83,6 +98,9 @@ public class SmsPlugin implements FlutterPlugin, ActivityAware {
         if (receiveSmsChannel != null) {
             receiveSmsChannel.setStreamHandler(null);
         }
+        if (receiveSmsBinaryChannel != null) {
+            receiveSmsBinaryChannel.setStreamHandler(null);
+        }
         activityBinding = null;
     }
 
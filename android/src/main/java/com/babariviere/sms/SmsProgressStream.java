@@ -0,0 +1,102 @@
+package com.babariviere.sms;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Progress events of long running operations (export, import, ...), each
+ * event is a JSON object holding at least {@code operation}.
+ *
+ * Events are dropped while nobody listens, reporters throttle themselves
+ * with a {@link Throttle}.
+ */
+
+class SmsProgressStream implements EventChannel.StreamHandler {
+    private static final String TAG = "SmsProgressStream";
+    static final long DEFAULT_INTERVAL_MS = 250;
+
+    private static SmsProgressStream instance;
+
+    private volatile EventChannel.EventSink sink;
+
+    static synchronized SmsProgressStream get() {
+        if (instance == null) {
+            instance = new SmsProgressStream();
+        }
+        return instance;
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        sink = events;
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        sink = null;
+    }
+
+    /**
+     * Posts an event to the platform thread, callable from any thread.
+     */
+    void emit(final JSONObject event) {
+        if (sink == null) {
+            return;
+        }
+        SmsExecutors.runOnMain(new Runnable() {
+            @Override
+            public void run() {
+                EventChannel.EventSink events = sink;
+                if (events != null) {
+                    events.success(event);
+                }
+            }
+        });
+    }
+
+    /**
+     * Emits {@code {operation, id, done, total}}, {@code total} is -1 when
+     * unknown.
+     */
+    void emit(String operation, String id, long done, long total) {
+        if (sink == null) {
+            return;
+        }
+        try {
+            JSONObject event = new JSONObject();
+            event.put("operation", operation);
+            event.put("id", id);
+            event.put("done", done);
+            event.put("total", total);
+            emit(event);
+        } catch (JSONException e) {
+            Log.d(TAG, e.toString());
+        }
+    }
+
+    /**
+     * Lets an event through at most once per interval.
+     */
+    static class Throttle {
+        private final long intervalMs;
+        private long last;
+
+        Throttle(long intervalMs) {
+            this.intervalMs = intervalMs;
+        }
+
+        boolean ready() {
+            long now = SystemClock.uptimeMillis();
+            if (now - last < intervalMs) {
+                return false;
+            }
+            last = now;
+            return true;
+        }
+    }
+}
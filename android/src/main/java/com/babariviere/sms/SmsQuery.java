@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.Telephony;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
@@ -12,14 +13,19 @@ import androidx.core.content.ContextCompat;
 
 import com.babariviere.sms.permisions.Permissions;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
 import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.JSONMethodCodec;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
@@ -41,6 +47,31 @@ enum SmsQueryRequest {
                 return Uri.parse("content://sms/inbox");
         }
     }
+
+    int toType() {
+        switch (this) {
+            case Sent:
+                return Telephony.Sms.MESSAGE_TYPE_SENT;
+            case Draft:
+                return Telephony.Sms.MESSAGE_TYPE_DRAFT;
+            default:
+                return Telephony.Sms.MESSAGE_TYPE_INBOX;
+        }
+    }
+
+    static SmsQueryRequest fromName(String name) {
+        if (name == null || "inbox".equals(name)) {
+            return Inbox;
+        }
+        switch (name) {
+            case "sent":
+                return Sent;
+            case "draft":
+                return Draft;
+            default:
+                throw new IllegalArgumentException("unknown kind '" + name + "'");
+        }
+    }
 }
 
 public class SmsQuery
@@ -49,21 +80,24 @@ public class SmsQuery
                    MethodChannel.MethodCallHandler,
                    PluginRegistry.RequestPermissionsResultListener {
 
+    private static final String CHANNEL_QUERY_STREAM = "plugins.babariviere.com/querySMSStream";
+    private static final String CHANNEL_CHANGES = "plugins.babariviere.com/smsChanges";
+    private static final String CHANNEL_PROGRESS = "plugins.babariviere.com/smsProgress";
     private static final int READ_SMS_REQ = Permissions.READ_SMS_ID_REQ;
     private final String[] permissionsList = { Manifest.permission.READ_SMS };
 
     private MethodChannel channel;
+    private EventChannel queryStreamChannel;
+    private SmsQueryStream queryStream;
+    private EventChannel changesChannel;
+    private SmsChangeStream changeStream;
+    private EventChannel progressChannel;
     private Context context;
     private ActivityPluginBinding activityBinding;
     private Permissions permissions;
 
-    // pending query parameters
-    private MethodChannel.Result pendingResult;
-    private SmsQueryRequest pendingRequest;
-    private int pendingStart;
-    private int pendingCount;
-    private int pendingThreadId;
-    private String pendingAddress;
+    // queries in flight
+    private final PendingCalls<MethodCall> pendingCalls = new PendingCalls<>();
 
     // 1) Register MethodChannel
     @Override
@@ -71,6 +105,26 @@ public class SmsQuery
         context = binding.getApplicationContext();
         channel = new MethodChannel(binding.getBinaryMessenger(), "sms");
         channel.setMethodCallHandler(this);
+        queryStream = new SmsQueryStream(context);
+        queryStreamChannel = new EventChannel(
+            binding.getBinaryMessenger(),
+            CHANNEL_QUERY_STREAM,
+            JSONMethodCodec.INSTANCE
+        );
+        queryStreamChannel.setStreamHandler(queryStream);
+        changeStream = new SmsChangeStream(context);
+        changesChannel = new EventChannel(
+            binding.getBinaryMessenger(),
+            CHANNEL_CHANGES,
+            JSONMethodCodec.INSTANCE
+        );
+        changesChannel.setStreamHandler(changeStream);
+        progressChannel = new EventChannel(
+            binding.getBinaryMessenger(),
+            CHANNEL_PROGRESS,
+            JSONMethodCodec.INSTANCE
+        );
+        progressChannel.setStreamHandler(SmsProgressStream.get());
     }
 
     // 2) Clean up on detach
@@ -78,6 +132,16 @@ public class SmsQuery
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         channel.setMethodCallHandler(null);
         channel = null;
+        queryStreamChannel.setStreamHandler(null);
+        queryStreamChannel = null;
+        queryStream.dispose();
+        queryStream = null;
+        changesChannel.setStreamHandler(null);
+        changesChannel = null;
+        changeStream.onCancel(null);
+        changeStream = null;
+        progressChannel.setStreamHandler(null);
+        progressChannel = null;
         context = null;
     }
 
@@ -113,36 +177,64 @@ public class SmsQuery
     public void onMethodCall(@NonNull MethodCall call, @NonNull MethodChannel.Result result) {
         switch (call.method) {
             case "getInbox":
-                pendingRequest = SmsQueryRequest.Inbox;
-                break;
             case "getSent":
-                pendingRequest = SmsQueryRequest.Sent;
-                break;
             case "getDraft":
-                pendingRequest = SmsQueryRequest.Draft;
+            case "getMessages":
+            case "getThreads":
+            case "getChangesSince":
+            case "searchMessages":
+            case "buildSearchIndex":
+            case "getMessageCounts":
+            case "compareCodecs":
+            case "exportMessages":
+            case "importMessages":
+            case "markRead":
+            case "deleteMessages":
                 break;
+            case "pauseQueryStream":
+                queryStream.pause();
+                result.success(null);
+                return;
+            case "resumeQueryStream":
+                queryStream.resume();
+                result.success(null);
+                return;
+            case "getQueryCacheStats":
+                try {
+                    result.success(SmsQueryCache.get(context).stats());
+                } catch (JSONException e) {
+                    result.error("#03", e.getMessage(), null);
+                }
+                return;
+            case "setQueryCacheSize":
+                SmsQueryCache.get(context).resize(
+                    call.hasArgument("max_rows") ? (int) call.argument("max_rows") : SmsQueryCache.DEFAULT_MAX_ROWS
+                );
+                result.success(null);
+                return;
+            case "configureExecutors":
+                SmsExecutors.configure(
+                    call.hasArgument("io_threads") ? (int) call.argument("io_threads") : 0,
+                    call.hasArgument("job_threads") ? (int) call.argument("job_threads") : 0
+                );
+                result.success(null);
+                return;
             default:
                 result.notImplemented();
                 return;
         }
 
-        // read optional arguments
-        pendingStart = call.hasArgument("start") ? call.argument("start") : 0;
-        pendingCount = call.hasArgument("count") ? call.argument("count") : -1;
-        pendingThreadId = call.hasArgument("thread_id") ? call.argument("thread_id") : -1;
-        pendingAddress = call.hasArgument("address") ? call.argument("address") : null;
-
-        pendingResult = result;
-
-        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_SMS)
-                != PackageManager.PERMISSION_GRANTED) {
+        boolean granted = ContextCompat.checkSelfPermission(context, Manifest.permission.READ_SMS)
+                == PackageManager.PERMISSION_GRANTED;
+        PendingCalls.Call<MethodCall> pending = pendingCalls.add(call, result, !granted);
+        if (!granted) {
             ActivityCompat.requestPermissions(
                 activityBinding.getActivity(),
                 permissionsList,
                 READ_SMS_REQ
             );
         } else {
-            querySms();
+            runQuery(pending);
         }
     }
 
@@ -154,74 +246,234 @@ public class SmsQuery
         }
         for (int res : grantResults) {
             if (res != PackageManager.PERMISSION_GRANTED) {
-                pendingResult.error("#01", "permission denied", null);
+                for (PendingCalls.Call<MethodCall> pending : pendingCalls.takeAwaitingPermission()) {
+                    pending.error("#01", "permission denied", null);
+                }
                 return false;
             }
         }
-        querySms();
+        for (PendingCalls.Call<MethodCall> pending : pendingCalls.takeAwaitingPermission()) {
+            runQuery(pending);
+        }
         return true;
     }
 
-    // 6) Original query logic
-    private void querySms() {
+    // 6) Query logic, runs on the I/O pool (whole store scans on the job pool)
+    // and replies on the platform thread
+    private void runQuery(final PendingCalls.Call<MethodCall> pending) {
+        ThreadPoolExecutor pool = isLongJob(pending.params.method) ? SmsExecutors.jobs() : SmsExecutors.io();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleQuery(pending.params, pending);
+                } catch (IllegalArgumentException e) {
+                    pending.error("#02", e.getMessage(), null);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    pending.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    private static boolean isLongJob(String method) {
+        switch (method) {
+            case "exportMessages":
+            case "importMessages":
+            case "getChangesSince":
+            case "compareCodecs":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void handleQuery(MethodCall call, MethodChannel.Result result) {
+        switch (call.method) {
+            case "getThreads":
+                new SmsThreadQuery(context.getContentResolver()).query(call, result);
+                break;
+            case "getChangesSince":
+                new SmsChangeSync(context.getContentResolver()).query(call, result);
+                break;
+            case "markRead":
+                new SmsMessageWriter(context).markRead(call, result);
+                break;
+            case "deleteMessages":
+                new SmsMessageWriter(context).delete(call, result);
+                break;
+            case "importMessages":
+                new SmsImporter(context).importFile(call, result);
+                break;
+            case "exportMessages":
+                new SmsExporter(context.getContentResolver()).export(call, result);
+                break;
+            case "compareCodecs":
+                new SmsCodecComparison(context.getContentResolver()).compare(
+                    SmsQueryParams.fromCall(null, call), result);
+                break;
+            case "getMessageCounts":
+                new SmsAggregateQuery(context.getContentResolver()).query(call, result);
+                break;
+            case "searchMessages":
+                searchMessages(call, result);
+                break;
+            case "buildSearchIndex":
+                SmsSearchIndex.get(context).build(
+                    call.hasArgument("rebuild") && (boolean) call.argument("rebuild"), result);
+                break;
+            case "getMessages":
+                // every kind listed in "kinds", merged and sorted by the provider
+                querySms(SmsQueryParams.fromCall(null, call), result);
+                break;
+            case "getSent":
+                querySms(SmsQueryParams.fromCall(SmsQueryRequest.Sent, call), result);
+                break;
+            case "getDraft":
+                querySms(SmsQueryParams.fromCall(SmsQueryRequest.Draft, call), result);
+                break;
+            default:
+                querySms(SmsQueryParams.fromCall(SmsQueryRequest.Inbox, call), result);
+        }
+    }
+
+    // searches what is indexed so far, the first search starts indexing
+    private void searchMessages(MethodCall call, MethodChannel.Result result) {
+        SmsSearchIndex index = SmsSearchIndex.get(context);
+        index.start();
+        try {
+            result.success(index.search(
+                (String) call.argument("query"),
+                call.hasArgument("limit") ? (int) call.argument("limit") : SmsSearchIndex.DEFAULT_LIMIT
+            ));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        }
+    }
+
+    // filters and paging are applied by the provider, replies are cached until the store changes
+    private void querySms(SmsQueryParams params, MethodChannel.Result result) {
+        SmsQueryCache cache = SmsQueryCache.get(context);
+        String key = params.cacheKey();
+        Object cached = cache.get(key);
+        if (cached != null) {
+            result.success(cached);
+            return;
+        }
+        long generation = cache.begin();
+
         ArrayList<JSONObject> list = new ArrayList<>();
-        Cursor cursor = context.getContentResolver()
-            .query(pendingRequest.toUri(), null, null, null, null);
+        Cursor cursor = new SmsQueryEngine(context.getContentResolver()).query(params);
 
         if (cursor == null) {
-            pendingResult.error("#01", "permission denied", null);
+            result.error("#01", "permission denied", null);
+            return;
+        }
+        if (params.binary) {
+            queryBinary(cursor, params, key, generation, result);
+            return;
+        }
+        if (params.isKeyset()) {
+            queryPage(cursor, params, key, generation, result);
             return;
         }
         if (!cursor.moveToFirst()) {
             cursor.close();
-            pendingResult.success(list);
+            cache.put(key, generation, list, params.threadId, 0);
+            result.success(list);
             return;
         }
 
+        SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
         do {
-            JSONObject obj = new JSONObject();
-            // read all columns
-            for (int i = 0; i < cursor.getColumnCount(); i++) {
-                String col = cursor.getColumnName(i);
-                try {
-                    switch (col) {
-                        case "address":
-                        case "body":
-                            obj.put(col, cursor.getString(i));
-                            break;
-                        case "date":
-                        case "date_sent":
-                            obj.put(col, cursor.getLong(i));
-                            break;
-                        default:
-                            obj.put(col, cursor.getInt(i));
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
+            try {
+                list.add(decoder.decode());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        } while (cursor.moveToNext());
+
+        cursor.close();
+        cache.put(key, generation, list, params.threadId, list.size());
+        result.success(list);
+    }
+
+    /**
+     * Reads one keyset page, the reply holds the messages and the token of
+     * the next page, null on the last page.
+     */
+    private void queryPage(Cursor cursor, SmsQueryParams params, String key, long generation,
+                           MethodChannel.Result result) {
+        JSONArray messages = new JSONArray();
+        SmsPageToken next = null;
+        try {
+            SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+            int dateIndex = cursor.getColumnIndexOrThrow("date");
+            int idIndex = cursor.getColumnIndexOrThrow("_id");
+            long lastDate = 0;
+            long lastId = 0;
+            while (cursor.moveToNext()) {
+                if (messages.length() == params.pageSize) {
+                    next = new SmsPageToken(lastDate, lastId);
+                    break;
                 }
+                messages.put(decoder.decode());
+                lastDate = cursor.getLong(dateIndex);
+                lastId = cursor.getLong(idIndex);
             }
-            // apply filters
-            try {
-                if (pendingThreadId >= 0 && obj.getInt("thread_id") != pendingThreadId) {
-                    continue;
+            JSONObject page = new JSONObject();
+            page.put("messages", messages);
+            page.put("next_page_token", next != null ? next.encode() : JSONObject.NULL);
+            SmsQueryCache.get(context).put(key, generation, page, params.threadId, messages.length());
+            result.success(page);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Binary variant of {@link #querySms}: the rows are sent as one
+     * {@link SmsBinaryEncoder} buffer, a keyset page as a map holding the
+     * buffer and the token of the next page.
+     */
+    private void queryBinary(Cursor cursor, SmsQueryParams params, String key, long generation,
+                             MethodChannel.Result result) {
+        try {
+            SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+            SmsBinaryEncoder encoder = new SmsBinaryEncoder(decoder.columnNames());
+            int dateIndex = params.isKeyset() ? cursor.getColumnIndexOrThrow("date") : -1;
+            int idIndex = params.isKeyset() ? cursor.getColumnIndexOrThrow("_id") : -1;
+            SmsPageToken next = null;
+            long lastDate = 0;
+            long lastId = 0;
+            while (cursor.moveToNext()) {
+                if (params.isKeyset() && encoder.rowCount() == params.pageSize) {
+                    next = new SmsPageToken(lastDate, lastId);
+                    break;
                 }
-                if (pendingAddress != null && !obj.getString("address").equals(pendingAddress)) {
-                    continue;
+                decoder.encode(encoder);
+                if (params.isKeyset()) {
+                    lastDate = cursor.getLong(dateIndex);
+                    lastId = cursor.getLong(idIndex);
                 }
-            } catch (JSONException ignored) {}
-
-            if (pendingStart > 0) {
-                pendingStart--;
-                continue;
             }
-
-            list.add(obj);
-            if (pendingCount > 0 && --pendingCount == 0) {
-                break;
+            int rows = encoder.rowCount();
+            Object reply = encoder.finish();
+            if (params.isKeyset()) {
+                HashMap<String, Object> page = new HashMap<>();
+                page.put("messages", reply);
+                page.put("next_page_token", next != null ? next.encode() : null);
+                reply = page;
             }
-        } while (cursor.moveToNext());
-
-        cursor.close();
-        pendingResult.success(list);
+            SmsQueryCache.get(context).put(key, generation, reply, params.threadId, rows);
+            result.success(reply);
+        } finally {
+            cursor.close();
+        }
     }
 }
@@ -0,0 +1,167 @@
+package com.babariviere.sms;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * LRU cache of SMS query replies, keyed by {@link SmsQueryParams#cacheKey()}
+ * and bounded by the total number of cached rows.
+ *
+ * Entries are dropped by the {@link SmsChangeMonitor}: a page filtered on a
+ * thread only when that thread changed (or a row of unknown thread was
+ * deleted), any other page on every change since new messages shift its
+ * rows. A query that started before an invalidation is not stored, so a
+ * stale reply never replaces a dropped one. Changes are seen once the
+ * debounce window of the monitor has passed.
+ */
+
+class SmsQueryCache implements SmsChangeMonitor.Listener {
+    static final int DEFAULT_MAX_ROWS = 5000;
+
+    private static SmsQueryCache instance;
+
+    private final SmsChangeMonitor monitor;
+    private final LruCache<String, Entry> entries;
+    // bumped by every invalidation
+    private long generation;
+    private boolean listening;
+    private int maxRows = DEFAULT_MAX_ROWS;
+    private int invalidations;
+
+    private SmsQueryCache(Context context) {
+        monitor = SmsChangeMonitor.get(context);
+        entries = new LruCache<String, Entry>(DEFAULT_MAX_ROWS) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return Math.max(entry.rows, 1);
+            }
+        };
+    }
+
+    static synchronized SmsQueryCache get(Context context) {
+        if (instance == null) {
+            instance = new SmsQueryCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Cached reply of {@code key}, or null.
+     */
+    Object get(String key) {
+        if (maxRows == 0) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        return entry != null ? entry.reply : null;
+    }
+
+    /**
+     * Starts a query whose reply may be stored, the returned generation
+     * must be handed to {@link #put}.
+     */
+    synchronized long begin() {
+        if (maxRows > 0 && !listening) {
+            // nothing was observed so far, older queries must not be stored
+            monitor.addListener(this);
+            listening = true;
+            generation++;
+        }
+        return generation;
+    }
+
+    /**
+     * Stores the reply of a query started with {@link #begin()}, unless
+     * the store changed meanwhile.
+     *
+     * @param threadId thread the query was filtered on, -1 if none
+     * @param rows number of rows of the reply
+     */
+    synchronized void put(String key, long generation, Object reply, int threadId, int rows) {
+        if (maxRows == 0 || generation != this.generation) {
+            return;
+        }
+        entries.put(key, new Entry(reply, threadId, rows));
+    }
+
+    /**
+     * Sets the maximum number of cached rows, 0 disables the cache.
+     */
+    synchronized void resize(int maxRows) {
+        this.maxRows = Math.max(maxRows, 0);
+        if (this.maxRows == 0) {
+            entries.evictAll();
+            if (listening) {
+                monitor.removeListener(this);
+                listening = false;
+            }
+            generation++;
+        } else {
+            entries.resize(this.maxRows);
+        }
+    }
+
+    synchronized JSONObject stats() throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("hits", entries.hitCount());
+        res.put("misses", entries.missCount());
+        res.put("puts", entries.putCount());
+        res.put("evictions", entries.evictionCount());
+        res.put("invalidations", invalidations);
+        res.put("size", entries.size());
+        res.put("max_size", maxRows);
+        return res;
+    }
+
+    /**
+     * Drops the replies affected by a change the plugin made, so the call
+     * that made it is replied after them. The threads of the changed rows
+     * are not known yet, every page filtered on a thread is dropped too.
+     */
+    void invalidate(SmsChangeSet changes) {
+        SmsChangeSet local = new SmsChangeSet();
+        local.addAll(changes);
+        if (!local.rowIds.isEmpty()) {
+            local.unresolvedRows = true;
+        }
+        onSmsChanged(local);
+    }
+
+    @Override
+    public synchronized void onSmsChanged(SmsChangeSet changes) {
+        generation++;
+        if (changes.full) {
+            invalidations += entries.snapshot().size();
+            entries.evictAll();
+            return;
+        }
+        for (Map.Entry<String, Entry> cached : entries.snapshot().entrySet()) {
+            if (cached.getValue().isAffectedBy(changes)) {
+                entries.remove(cached.getKey());
+                invalidations++;
+            }
+        }
+    }
+
+    private static class Entry {
+        final Object reply;
+        final int threadId;
+        final int rows;
+
+        Entry(Object reply, int threadId, int rows) {
+            this.reply = reply;
+            this.threadId = threadId;
+            this.rows = rows;
+        }
+
+        boolean isAffectedBy(SmsChangeSet changes) {
+            // deleted rows are reported without their thread
+            return threadId < 0 || changes.unresolvedRows || changes.threadIds.contains((long) threadId);
+        }
+    }
+}
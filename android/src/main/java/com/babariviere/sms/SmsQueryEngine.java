@@ -0,0 +1,209 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Translates {@link SmsQueryParams} into a provider query, so filtering,
+ * ordering and paging are done by the SMS provider instead of by walking
+ * the whole table in Java.
+ */
+
+class SmsQueryEngine {
+    private static final String TAG = "SmsQueryEngine";
+    static final String DEFAULT_SORT_ORDER = "date DESC, _id DESC";
+
+    private final ContentResolver resolver;
+
+    SmsQueryEngine(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Runs the query described by {@code params}.
+     *
+     * The telephony provider ignores {@code QUERY_ARG_LIMIT}/{@code QUERY_ARG_OFFSET}
+     * in a query Bundle, but passes the sort order straight to SQLite, so the
+     * page is expressed as a {@code LIMIT ... OFFSET ...} suffix of the sort order.
+     * Providers that reject it are queried again without the suffix, and the
+     * page is then cut out of the cursor on the Java side. The same fallback
+     * drops the {@code substr()} expression used for body snippets.
+     */
+    Cursor query(SmsQueryParams params) {
+        return query(params.uri(), params.projection(), params.columns, buildSelection(params),
+            DEFAULT_SORT_ORDER, params.offset(), params.limit());
+    }
+
+    /**
+     * Runs a query with paging pushed down to the provider, {@code plainProjection}
+     * is the projection without SQL expressions used by the fallback query.
+     */
+    Cursor query(Uri uri, String[] projection, String[] plainProjection, Selection selection,
+                 String sortOrder, int offset, int limit) {
+        String limitClause = limitClause(offset, limit);
+        try {
+            return resolver.query(uri, projection, selection.sql, selection.argsArray(),
+                limitClause == null ? sortOrder : sortOrder + limitClause);
+        } catch (SQLiteException | IllegalArgumentException e) {
+            if (limitClause == null && projection == plainProjection) {
+                throw e;
+            }
+            Log.d(TAG, "provider rejected query, paging in memory: " + e);
+        }
+        Cursor cursor = resolver.query(uri, plainProjection, selection.sql, selection.argsArray(), sortOrder);
+        if (limitClause == null || cursor == null) {
+            return cursor;
+        }
+        return new WindowCursor(cursor, offset, limit);
+    }
+
+    static Selection buildSelection(SmsQueryParams params) {
+        Selection selection = new Selection();
+        if (params.kinds != null) {
+            String[] types = new String[params.kinds.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = String.valueOf(params.kinds[i].toType());
+            }
+            selection.andIn("type", types);
+        }
+        if (params.threadId >= 0) {
+            selection.and("thread_id = ?", String.valueOf(params.threadId));
+        }
+        if (params.address != null) {
+            selection.and("address = ?", params.address);
+        }
+        if (params.pageToken != null) {
+            selection.and(params.pageToken.selection(), params.pageToken.selectionArgs());
+        }
+        return selection;
+    }
+
+    static String limitClause(int offset, int limit) {
+        if (limit < 0 && offset <= 0) {
+            return null;
+        }
+        // SQLite needs a LIMIT for OFFSET, -1 means no upper bound
+        return " LIMIT " + limit + (offset > 0 ? " OFFSET " + offset : "");
+    }
+
+    /**
+     * A SQL selection and its bound arguments, joined with AND.
+     */
+    static class Selection {
+        String sql;
+        final List<String> args = new ArrayList<>();
+
+        void and(String clause, String... values) {
+            sql = sql == null ? clause : "(" + sql + ") AND (" + clause + ")";
+            for (String value : values) {
+                args.add(value);
+            }
+        }
+
+        void andIn(String column, String... values) {
+            StringBuilder clause = new StringBuilder(column).append(" IN (");
+            for (int i = 0; i < values.length; i++) {
+                clause.append(i == 0 ? "?" : ", ?");
+            }
+            and(clause.append(')').toString(), values);
+        }
+
+        String[] argsArray() {
+            return args.isEmpty() ? null : args.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Exposes the rows {@code [offset, offset + limit)} of the wrapped cursor.
+     */
+    static class WindowCursor extends CursorWrapper {
+        private final int offset;
+        private final int count;
+        private int position = -1;
+
+        WindowCursor(Cursor cursor, int offset, int limit) {
+            super(cursor);
+            this.offset = offset;
+            int available = Math.max(cursor.getCount() - offset, 0);
+            this.count = limit < 0 ? available : Math.min(limit, available);
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public boolean moveToPosition(int target) {
+            if (target < 0) {
+                position = -1;
+                super.moveToPosition(offset - 1);
+                return false;
+            }
+            if (target >= count) {
+                position = count;
+                super.moveToPosition(offset + count);
+                return false;
+            }
+            position = target;
+            return super.moveToPosition(offset + target);
+        }
+
+        @Override
+        public boolean move(int delta) {
+            return moveToPosition(position + delta);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(count - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(position + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(position - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return count > 0 && position == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return count > 0 && position == count - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return count == 0 || position == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return count == 0 || position == count;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.babariviere.sms;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import io.flutter.plugin.common.MethodCall;
+
+/**
+ * Arguments of a single SMS query call, as sent by the Dart side.
+ */
+
+class SmsQueryParams {
+    private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final Uri ALL_SMS_URI = Uri.parse("content://sms");
+
+    // single kind query, null when kinds is set
+    final SmsQueryRequest request;
+    // merged query over several kinds
+    final SmsQueryRequest[] kinds;
+    final int start;
+    final int count;
+    final int threadId;
+    final String address;
+    // null reads every column of the table
+    final String[] columns;
+    // maximum length of the returned body, 0 for the full body
+    final int bodyLength;
+    // keyset pagination, start and count are ignored when pageSize > 0
+    final int pageSize;
+    final SmsPageToken pageToken;
+    // rows are sent as a SmsBinaryEncoder buffer instead of JSON objects
+    final boolean binary;
+
+    SmsQueryParams(SmsQueryRequest request, SmsQueryRequest[] kinds, int start, int count, int threadId,
+                   String address, String[] columns, int bodyLength, int pageSize, SmsPageToken pageToken,
+                   boolean binary) {
+        this.request = request;
+        this.kinds = kinds;
+        this.start = start;
+        this.count = count;
+        this.threadId = threadId;
+        this.address = address;
+        this.columns = columns;
+        this.bodyLength = bodyLength;
+        this.pageSize = pageSize;
+        this.pageToken = pageToken;
+        this.binary = binary;
+    }
+
+    /**
+     * Reads the arguments of a query call, a null {@code request} queries
+     * every kind listed in {@code kinds}, all of them by default.
+     */
+    static SmsQueryParams fromCall(SmsQueryRequest request, MethodCall call) {
+        SmsQueryRequest[] kinds = null;
+        if (call.hasArgument("kinds")) {
+            kinds = readKinds(call.<List<String>>argument("kinds"));
+            request = null;
+        } else if (request == null) {
+            kinds = SmsQueryRequest.values();
+        }
+        int start = call.hasArgument("start") ? (int) call.argument("start") : 0;
+        int count = call.hasArgument("count") ? (int) call.argument("count") : -1;
+        int threadId = call.hasArgument("thread_id") ? (int) call.argument("thread_id") : -1;
+        String address = call.hasArgument("address") ? (String) call.argument("address") : null;
+        String[] columns = call.hasArgument("columns") ? readColumns(call.<List<String>>argument("columns")) : null;
+        int bodyLength = call.hasArgument("body_length") ? (int) call.argument("body_length") : 0;
+        int pageSize = call.hasArgument("page_size") ? (int) call.argument("page_size") : 0;
+        String pageToken = call.hasArgument("page_token") ? (String) call.argument("page_token") : null;
+        boolean binary = readFormat(call.hasArgument("format") ? (String) call.argument("format") : null);
+        if (pageSize > 0 && columns != null) {
+            // the continuation token is read from these columns
+            columns = withColumns(columns, "date", "_id");
+        }
+        if (kinds != null && columns != null) {
+            // tells the kind of each message of a merged query
+            columns = withColumns(columns, "type");
+        }
+        return new SmsQueryParams(request, kinds, start, count, threadId, address, columns, Math.max(bodyLength, 0),
+            pageSize, pageToken != null ? SmsPageToken.decode(pageToken) : null, binary);
+    }
+
+    private static boolean readFormat(String format) {
+        if (format == null || "json".equals(format)) {
+            return false;
+        }
+        if ("binary".equals(format)) {
+            return true;
+        }
+        throw new IllegalArgumentException("unknown format '" + format + "'");
+    }
+
+    private static SmsQueryRequest[] readKinds(List<String> names) {
+        if (names == null || names.isEmpty()) {
+            return SmsQueryRequest.values();
+        }
+        SmsQueryRequest[] kinds = new SmsQueryRequest[names.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = SmsQueryRequest.fromName(names.get(i));
+        }
+        return kinds;
+    }
+
+    private static String[] withColumns(String[] columns, String... required) {
+        List<String> res = new ArrayList<>(Arrays.asList(columns));
+        for (String column : required) {
+            if (!res.contains(column)) {
+                res.add(column);
+            }
+        }
+        return res.toArray(new String[0]);
+    }
+
+    /**
+     * Column names end up in the SQL sent to the provider, so only plain
+     * identifiers are accepted.
+     */
+    private static String[] readColumns(List<String> columns) {
+        if (columns == null || columns.isEmpty()) {
+            return null;
+        }
+        String[] res = new String[columns.size()];
+        for (int i = 0; i < res.length; i++) {
+            String column = columns.get(i);
+            if (column == null || !COLUMN_NAME.matcher(column).matches()) {
+                throw new IllegalArgumentException("invalid column '" + column + "'");
+            }
+            res[i] = column;
+        }
+        return res;
+    }
+
+    /**
+     * Projection handed to the provider, the body is cut down by SQLite
+     * when only a snippet is requested.
+     */
+    String[] projection() {
+        if (columns == null || bodyLength <= 0) {
+            return columns;
+        }
+        String[] projection = columns.clone();
+        for (int i = 0; i < projection.length; i++) {
+            if ("body".equals(projection[i])) {
+                projection[i] = "substr(body, 1, " + bodyLength + ") AS body";
+            }
+        }
+        return projection;
+    }
+
+    String truncateBody(String body) {
+        if (body == null || bodyLength <= 0 || body.length() <= bodyLength) {
+            return body;
+        }
+        return body.substring(0, bodyLength);
+    }
+
+    /**
+     * Identifies the reply of this query in the {@link SmsQueryCache}.
+     */
+    String cacheKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(kinds != null ? Arrays.toString(kinds) : request.name())
+            .append('|').append(threadId)
+            .append('|').append(address)
+            .append('|').append(columns != null ? Arrays.toString(columns) : "*")
+            .append('|').append(bodyLength)
+            .append('|').append(binary ? "binary" : "json");
+        if (isKeyset()) {
+            key.append("|page:").append(pageSize).append(':')
+                .append(pageToken != null ? pageToken.encode() : "");
+        } else {
+            key.append("|range:").append(offset()).append(':').append(limit());
+        }
+        return key.toString();
+    }
+
+    Uri uri() {
+        return kinds != null ? ALL_SMS_URI : request.toUri();
+    }
+
+    boolean isKeyset() {
+        return pageSize > 0;
+    }
+
+    /**
+     * Number of leading rows to skip.
+     */
+    int offset() {
+        return isKeyset() ? 0 : Math.max(start, 0);
+    }
+
+    /**
+     * Maximum number of rows to read, -1 for no limit. A keyset page reads
+     * one extra row to find out whether another page follows.
+     */
+    int limit() {
+        if (isKeyset()) {
+            return pageSize + 1;
+        }
+        return count > 0 ? count : -1;
+    }
+}
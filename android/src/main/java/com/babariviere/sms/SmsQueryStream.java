@@ -0,0 +1,222 @@
+package com.babariviere.sms;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.concurrent.Semaphore;
+
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.MethodCall;
+
+/**
+ * Streams the result of an SMS query as chunks of rows.
+ *
+ * Listen arguments are the ones of {@code getInbox}, plus {@code kind}
+ * ("inbox", "sent" or "draft", or a {@code kinds} list as for
+ * {@code getMessages}) and {@code chunk_size}. Each event is a list
+ * of at most {@code chunk_size} rows and the stream ends with the cursor.
+ * The next chunk is only read once the previous one has been handed to the
+ * sink, and reading stops while the stream is paused. Binary replies and
+ * keyset paging ({@code format}, {@code page_size}, {@code page_token})
+ * are not supported and fail with #02.
+ *
+ * Streams run on the job pool of {@link SmsExecutors}: a paused stream
+ * holds its thread.
+ */
+
+class SmsQueryStream implements EventChannel.StreamHandler {
+    private static final String TAG = "SmsQueryStream";
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Producer producer;
+
+    SmsQueryStream(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        stopProducer();
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_SMS)
+                != PackageManager.PERMISSION_GRANTED) {
+            events.error("#01", "permission denied", null);
+            return;
+        }
+        MethodCall call = new MethodCall("queryStream", arguments);
+        SmsQueryParams params;
+        try {
+            SmsQueryRequest request = SmsQueryRequest.fromName(
+                call.hasArgument("kind") ? (String) call.argument("kind") : null);
+            params = SmsQueryParams.fromCall(request, call);
+            if (params.binary || call.hasArgument("page_size") || call.hasArgument("page_token")) {
+                throw new IllegalArgumentException("format, page_size and page_token are not supported by streams");
+            }
+        } catch (IllegalArgumentException e) {
+            events.error("#02", e.getMessage(), null);
+            return;
+        }
+        int chunkSize = call.argument("chunk_size") != null
+            ? ((Number) call.argument("chunk_size")).intValue()
+            : DEFAULT_CHUNK_SIZE;
+        producer = new Producer(params, Math.max(chunkSize, 1), events);
+        SmsExecutors.jobs().execute(producer);
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        stopProducer();
+    }
+
+    void pause() {
+        if (producer != null) {
+            producer.setPaused(true);
+        }
+    }
+
+    void resume() {
+        if (producer != null) {
+            producer.setPaused(false);
+        }
+    }
+
+    void dispose() {
+        stopProducer();
+    }
+
+    private void stopProducer() {
+        if (producer != null) {
+            producer.cancel();
+            producer = null;
+        }
+    }
+
+    /**
+     * Reads the cursor on a job thread and posts chunks to the main thread.
+     */
+    private class Producer implements Runnable {
+        private final SmsQueryParams params;
+        private final int chunkSize;
+        private final EventChannel.EventSink events;
+        // released each time a chunk has reached the sink
+        private final Semaphore delivered = new Semaphore(0);
+        private final Object pauseLock = new Object();
+        private volatile boolean paused;
+        private volatile boolean cancelled;
+
+        Producer(SmsQueryParams params, int chunkSize, EventChannel.EventSink events) {
+            this.params = params;
+            this.chunkSize = chunkSize;
+            this.events = events;
+        }
+
+        void setPaused(boolean paused) {
+            synchronized (pauseLock) {
+                this.paused = paused;
+                pauseLock.notifyAll();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            setPaused(false);
+            delivered.release();
+        }
+
+        @Override
+        public void run() {
+            Cursor cursor = null;
+            try {
+                cursor = new SmsQueryEngine(context.getContentResolver()).query(params);
+                if (cursor == null) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            events.error("#01", "permission denied", null);
+                        }
+                    });
+                    return;
+                }
+                SmsRowDecoder decoder = new SmsRowDecoder(cursor, params);
+                JSONArray chunk = new JSONArray();
+                while (!cancelled && cursor.moveToNext()) {
+                    chunk.put(decoder.decode());
+                    if (chunk.length() == chunkSize) {
+                        emit(chunk);
+                        chunk = new JSONArray();
+                    }
+                }
+                if (chunk.length() > 0) {
+                    emit(chunk);
+                }
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        events.endOfStream();
+                    }
+                });
+            } catch (final JSONException | RuntimeException e) {
+                Log.d(TAG, e.toString());
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        events.error("#03", e.getMessage(), null);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Hands a chunk to the sink and blocks until it has been sent, then
+         * waits while the stream is paused.
+         */
+        private void emit(final JSONArray chunk) throws InterruptedException {
+            if (cancelled) {
+                return;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    events.success(chunk);
+                    delivered.release();
+                }
+            });
+            delivered.acquire();
+            synchronized (pauseLock) {
+                while (paused && !cancelled) {
+                    pauseLock.wait();
+                }
+            }
+        }
+
+        private void post(final Runnable event) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        event.run();
+                    } else {
+                        delivered.release();
+                    }
+                }
+            });
+        }
+    }
+}
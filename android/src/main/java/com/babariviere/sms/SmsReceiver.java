@@ -43,9 +43,16 @@ public class SmsReceiver implements StreamHandler, PluginRegistry.RequestPermiss
         Manifest.permission.READ_SMS
     };
     private EventSink sink;
+    // events are SmsBinaryEncoder buffers instead of JSON objects
+    private final boolean binary;
 
     public SmsReceiver(Context context, @NonNull ActivityPluginBinding activityBinding) {
+        this(context, activityBinding, false);
+    }
+
+    public SmsReceiver(Context context, @NonNull ActivityPluginBinding activityBinding, boolean binary) {
         this.context = context;
+        this.binary = binary;
         this.activityBinding = activityBinding;
         this.activity = activityBinding.getActivity();
         this.permissions = new Permissions(activity);
@@ -102,7 +109,7 @@ public class SmsReceiver implements StreamHandler, PluginRegistry.RequestPermiss
                     }
                     obj.put("body", body.toString());
 
-                    events.success(obj);
+                    events.success(binary ? encode(obj) : obj);
                 } catch (Exception e) {
                     Log.d("SmsReceiver", e.toString());
                 }
@@ -110,6 +117,19 @@ public class SmsReceiver implements StreamHandler, PluginRegistry.RequestPermiss
         };
     }
 
+    /**
+     * Single row buffer holding the fields of the event.
+     */
+    private static byte[] encode(JSONObject obj) {
+        String[] columns = {"address", "date", "date_sent", "read", "thread_id", "body"};
+        SmsBinaryEncoder encoder = new SmsBinaryEncoder(columns);
+        for (String column : columns) {
+            encoder.put(obj.opt(column));
+        }
+        encoder.endRow();
+        return encoder.finish();
+    }
+
     @Override
     public boolean onRequestPermissionsResult(int requestCode, String[] perms, int[] grantResults) {
         if (requestCode != Permissions.RECV_SMS_ID_REQ) {
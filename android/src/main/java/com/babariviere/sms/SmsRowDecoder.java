@@ -0,0 +1,111 @@
+package com.babariviere.sms;
+
+import android.database.Cursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decodes the rows of a cursor into JSON objects, or into a
+ * {@link SmsBinaryEncoder}.
+ *
+ * Column names and indexes are resolved once per cursor and the type of each
+ * column is taken from {@link Cursor#getType(int)} the first time a non null
+ * value is seen, so reading a row is a flat loop over typed accessors.
+ */
+
+class SmsRowDecoder {
+    private final Cursor cursor;
+    private final SmsQueryParams params;
+    private final String[] names;
+    private final int[] types;
+    private final int bodyIndex;
+
+    SmsRowDecoder(Cursor cursor, SmsQueryParams params) {
+        this.cursor = cursor;
+        this.params = params;
+        this.names = cursor.getColumnNames();
+        this.types = new int[names.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = Cursor.FIELD_TYPE_NULL;
+        }
+        this.bodyIndex = cursor.getColumnIndex("body");
+    }
+
+    /**
+     * Resolves the type of column {@code i} for the current row, and returns
+     * {@link Cursor#FIELD_TYPE_NULL} when the cell is null.
+     */
+    private int typeOf(int i) {
+        int type = types[i];
+        if (type == Cursor.FIELD_TYPE_NULL) {
+            type = cursor.getType(i);
+            types[i] = type;
+            return type;
+        }
+        if (type != Cursor.FIELD_TYPE_STRING && cursor.isNull(i)) {
+            return Cursor.FIELD_TYPE_NULL;
+        }
+        return type;
+    }
+
+    String[] columnNames() {
+        return names;
+    }
+
+    private String getBody() {
+        return params.truncateBody(cursor.getString(bodyIndex));
+    }
+
+    /**
+     * Decodes the current row, null cells are left out of the object.
+     */
+    JSONObject decode() throws JSONException {
+        JSONObject obj = new JSONObject();
+        for (int i = 0; i < names.length; i++) {
+            switch (typeOf(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    obj.put(names[i], cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    obj.put(names[i], cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    obj.put(names[i], i == bodyIndex ? getBody() : cursor.getString(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    obj.put(names[i], cursor.getBlob(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Writes the current row to {@code out}, null cells included.
+     */
+    void encode(SmsBinaryEncoder out) {
+        for (int i = 0; i < names.length; i++) {
+            switch (typeOf(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    out.putLong(cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    out.putDouble(cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    out.putString(i == bodyIndex ? getBody() : cursor.getString(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    out.putBlob(cursor.getBlob(i));
+                    break;
+                default:
+                    out.putNull();
+                    break;
+            }
+        }
+        out.endRow();
+    }
+}
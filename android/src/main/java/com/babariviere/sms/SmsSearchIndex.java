@@ -0,0 +1,619 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Full-text index of the message bodies, kept in a plugin owned SQLite
+ * database with an FTS4 table.
+ *
+ * The index is filled in the background in {@code _id} order and resumes
+ * where it stopped. Once started it follows the {@link SmsChangeMonitor}:
+ * changed rows are indexed again, new rows are appended and deleted rows
+ * are dropped. Rows of changed threads are indexed again too. A change
+ * that names nothing indexes again the drafts and the rows dated after the
+ * last sync (minus {@code RECENT_SLACK_MS}), and looks for deleted rows
+ * at most every {@code DROP_INTERVAL_MS}. Writes run on a single thread,
+ * searches on the caller's.
+ *
+ * Hits are ranked with BM25, computed from {@code matchinfo()}, and only
+ * the best {@code limit} hits are read back with their snippet.
+ */
+
+class SmsSearchIndex extends SQLiteOpenHelper implements SmsChangeMonitor.Listener {
+    private static final String TAG = "SmsSearchIndex";
+    private static final String DATABASE_NAME = "sms_search.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final Uri SMS_URI = Uri.parse("content://sms");
+    private static final String[] SMS_PROJECTION = { "_id", "thread_id", "address", "date", "type", "body" };
+    // rows written per transaction while filling the index
+    private static final int BATCH_SIZE = 500;
+    // stays below the SQLite limit of 999 bound arguments
+    private static final int MAX_ARGS = 500;
+    static final int DEFAULT_LIMIT = 50;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // rows dated this long before the last sync are indexed again on a full change
+    private static final long RECENT_SLACK_MS = 60 * 1000;
+    // deleted rows are looked for at most this often, it scans every _id
+    private static final long DROP_INTERVAL_MS = 60 * 1000;
+    private static final int TYPE_DRAFT = 3;
+
+    private static SmsSearchIndex instance;
+
+    private final ContentResolver resolver;
+    private final SmsChangeMonitor monitor;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean syncQueued = new AtomicBoolean();
+    private final AtomicBoolean dropQueued = new AtomicBoolean();
+    private boolean started;
+    // only touched on the writer thread
+    private long droppedAt = -DROP_INTERVAL_MS;
+
+    private SmsSearchIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        resolver = context.getContentResolver();
+        monitor = SmsChangeMonitor.get(context);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    static synchronized SmsSearchIndex get(Context context) {
+        if (instance == null) {
+            instance = new SmsSearchIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // unicode61 folds case and diacritics beyond ASCII, it ships with API 21
+        String tokenizer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+            ? ", tokenize=unicode61 \"remove_diacritics=1\"" : "";
+        db.execSQL("CREATE VIRTUAL TABLE body_index USING fts4(body" + tokenizer + ")");
+        db.execSQL("CREATE TABLE message_meta (_id INTEGER PRIMARY KEY, thread_id INTEGER, "
+            + "address TEXT, date INTEGER, type INTEGER)");
+        db.execSQL("CREATE TABLE index_state (key TEXT PRIMARY KEY, value INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS body_index");
+        db.execSQL("DROP TABLE IF EXISTS message_meta");
+        db.execSQL("DROP TABLE IF EXISTS index_state");
+        onCreate(db);
+    }
+
+    /**
+     * Starts filling the index and following changes, if not done yet.
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        monitor.addListener(this);
+        scheduleSync();
+    }
+
+    /**
+     * Fills the index, from scratch when {@code rebuild} is set, and replies
+     * with the status of the index once done.
+     */
+    void build(final boolean rebuild, final MethodChannel.Result result) {
+        start();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (rebuild) {
+                        clear();
+                    }
+                    catchUp();
+                    result.success(status());
+                } catch (RuntimeException | JSONException e) {
+                    Log.d(TAG, e.toString());
+                    result.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSmsChanged(final SmsChangeSet changes) {
+        if (changes.full) {
+            // changes we can't pin to rows or threads
+            scheduleSync();
+            return;
+        }
+        // rows not found are deleted ones, reindex() drops them
+        final List<Long> ids = new ArrayList<>(changes.rowIds);
+        final List<Long> threadIds = new ArrayList<>(changes.threadIds);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reindex(ids);
+                    reindexThreads(threadIds);
+                    catchUp();
+                } catch (RuntimeException e) {
+                    Log.d(TAG, e.toString());
+                }
+            }
+        });
+    }
+
+    private void scheduleSync() {
+        if (!syncQueued.compareAndSet(false, true)) {
+            return;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncQueued.set(false);
+                try {
+                    reindexRecent();
+                    catchUp();
+                    markSynced();
+                    scheduleDrop();
+                } catch (RuntimeException e) {
+                    // READ_SMS may not be granted yet
+                    Log.d(TAG, e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs {@link #dropDeleted()} now, or once {@code DROP_INTERVAL_MS}
+     * passed since the last run. Called on the writer thread.
+     */
+    private void scheduleDrop() {
+        if (!dropQueued.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = Math.max(0, droppedAt + DROP_INTERVAL_MS - SystemClock.uptimeMillis());
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                dropQueued.set(false);
+                droppedAt = SystemClock.uptimeMillis();
+                try {
+                    dropDeleted();
+                } catch (RuntimeException e) {
+                    Log.d(TAG, e.toString());
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    JSONObject status() throws JSONException {
+        SQLiteDatabase db = getReadableDatabase();
+        SQLiteStatement count = db.compileStatement("SELECT count(*) FROM message_meta");
+        JSONObject res = new JSONObject();
+        try {
+            res.put("indexed", count.simpleQueryForLong());
+        } finally {
+            count.close();
+        }
+        res.put("complete", readState(db, "complete") == 1);
+        return res;
+    }
+
+    /**
+     * Replies with {@code {hits, complete}}, hits are ordered by relevance and
+     * hold {@code _id, thread_id, address, date, type, snippet, score}. The
+     * last term of {@code query} matches as a prefix.
+     */
+    JSONObject search(String query, int limit) throws JSONException {
+        SQLiteDatabase db = getReadableDatabase();
+        JSONObject res = new JSONObject();
+        JSONArray hits = new JSONArray();
+        res.put("hits", hits);
+        res.put("complete", readState(db, "complete") == 1);
+        String match = toMatchQuery(query);
+        if (match == null || limit <= 0) {
+            return res;
+        }
+
+        // 1) rank every match from its statistics only
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit, Hit.BY_SCORE);
+        Cursor cursor = db.rawQuery("SELECT docid, matchinfo(body_index, 'pcnalx') FROM body_index "
+            + "WHERE body_index MATCH ?", new String[]{ match });
+        try {
+            while (cursor.moveToNext()) {
+                double score = bm25(cursor.getBlob(1));
+                if (best.size() < limit) {
+                    best.add(new Hit(cursor.getLong(0), score));
+                } else if (score > best.peek().score) {
+                    best.poll();
+                    best.add(new Hit(cursor.getLong(0), score));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (best.isEmpty()) {
+            return res;
+        }
+        List<Hit> ranked = new ArrayList<>(best);
+        Collections.sort(ranked, Collections.reverseOrder(Hit.BY_SCORE));
+
+        // 2) snippets and metadata of the best hits only
+        Map<Long, JSONObject> rows = new HashMap<>();
+        SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+        selection.and("body_index MATCH ?", match);
+        String[] ids = new String[ranked.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = String.valueOf(ranked.get(i).id);
+        }
+        selection.andIn("body_index.docid", ids);
+        cursor = db.rawQuery("SELECT m._id, m.thread_id, m.address, m.date, m.type, "
+            + "snippet(body_index, '<b>', '</b>', '...', 0, 12) FROM body_index "
+            + "JOIN message_meta m ON m._id = body_index.docid WHERE " + selection.sql, selection.argsArray());
+        try {
+            while (cursor.moveToNext()) {
+                JSONObject row = new JSONObject();
+                row.put("_id", cursor.getLong(0));
+                row.put("thread_id", cursor.getLong(1));
+                row.put("address", cursor.getString(2));
+                row.put("date", cursor.getLong(3));
+                row.put("type", cursor.getInt(4));
+                row.put("snippet", cursor.getString(5));
+                rows.put(cursor.getLong(0), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Hit hit : ranked) {
+            JSONObject row = rows.get(hit.id);
+            if (row != null) {
+                row.put("score", hit.score);
+                hits.put(row);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Turns user input into an FTS query: every word must match, the last one
+     * as a prefix. Operators and quotes of the input are dropped.
+     */
+    static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : query.split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(term).append('"');
+            }
+        }
+        if (match.length() == 0) {
+            return null;
+        }
+        return match.insert(match.length() - 1, '*').toString();
+    }
+
+    /**
+     * BM25 of one row from {@code matchinfo(..., 'pcnalx')} over a single
+     * column: {@code p, c, n, a, l}, then {@code hits, total hits, rows with
+     * hits} for each phrase.
+     */
+    static double bm25(byte[] blob) {
+        IntBuffer info = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        long rows = info.get(2) & 0xFFFFFFFFL;
+        double avgLength = Math.max(info.get(3), 1);
+        double length = info.get(4);
+        double score = 0;
+        for (int i = 0; i < phrases; i++) {
+            double hits = info.get(5 + 3 * i);
+            double rowsWithHits = info.get(5 + 3 * i + 2);
+            double idf = Math.log(1 + (rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+            score += idf * hits * (K1 + 1) / (hits + K1 * (1 - B + B * length / avgLength));
+        }
+        return score;
+    }
+
+    private void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM body_index");
+            db.execSQL("DELETE FROM message_meta");
+            db.execSQL("DELETE FROM index_state");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Appends the rows above the last indexed id, committing every
+     * {@code BATCH_SIZE} rows together with the progress.
+     */
+    private void catchUp() {
+        SQLiteDatabase db = getWritableDatabase();
+        long lastId = readState(db, "last_id");
+        Cursor cursor = resolver.query(SMS_URI, SMS_PROJECTION, "_id > ?",
+            new String[]{ String.valueOf(lastId) }, "_id ASC");
+        if (cursor == null) {
+            return;
+        }
+        SQLiteStatement insertMeta = db.compileStatement("INSERT OR REPLACE INTO message_meta "
+            + "(_id, thread_id, address, date, type) VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement insertBody = db.compileStatement("INSERT INTO body_index (docid, body) VALUES (?, ?)");
+        try {
+            boolean more = true;
+            while (more) {
+                db.beginTransaction();
+                try {
+                    int count = 0;
+                    while (count < BATCH_SIZE && (more = cursor.moveToNext())) {
+                        insert(cursor, insertMeta, insertBody);
+                        lastId = cursor.getLong(0);
+                        count++;
+                    }
+                    writeState(db, "last_id", lastId);
+                    if (!more) {
+                        writeState(db, "complete", 1);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            cursor.close();
+            insertMeta.close();
+            insertBody.close();
+        }
+    }
+
+    /**
+     * Indexes again the given rows already covered by the index, rows that
+     * are gone are dropped. Newer rows are left to {@link #catchUp()}.
+     */
+    private void reindex(List<Long> ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        long lastId = readState(db, "last_id");
+        List<String> known = new ArrayList<>();
+        for (long id : ids) {
+            if (id <= lastId) {
+                known.add(String.valueOf(id));
+            }
+        }
+        SQLiteStatement insertMeta = db.compileStatement("INSERT OR REPLACE INTO message_meta "
+            + "(_id, thread_id, address, date, type) VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement insertBody = db.compileStatement("INSERT INTO body_index (docid, body) VALUES (?, ?)");
+        try {
+            for (int from = 0; from < known.size(); from += MAX_ARGS) {
+                String[] chunk = known.subList(from, Math.min(from + MAX_ARGS, known.size())).toArray(new String[0]);
+                SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+                selection.andIn("_id", chunk);
+                Cursor cursor = resolver.query(SMS_URI, SMS_PROJECTION, selection.sql, selection.argsArray(), null);
+                if (cursor == null) {
+                    return;
+                }
+                db.beginTransaction();
+                try {
+                    delete(db, chunk);
+                    while (cursor.moveToNext()) {
+                        insert(cursor, insertMeta, insertBody);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    cursor.close();
+                }
+            }
+        } finally {
+            insertMeta.close();
+            insertBody.close();
+        }
+    }
+
+    /**
+     * Indexes again the rows of the given threads, in the index or in the
+     * provider.
+     */
+    private void reindexThreads(List<Long> threadIds) {
+        if (threadIds.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getReadableDatabase();
+        List<Long> ids = new ArrayList<>();
+        for (int from = 0; from < threadIds.size(); from += MAX_ARGS) {
+            List<Long> chunk = threadIds.subList(from, Math.min(from + MAX_ARGS, threadIds.size()));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+            SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+            selection.andIn("thread_id", args);
+            readIds(db.query("message_meta", new String[]{ "_id" }, selection.sql, selection.argsArray(),
+                null, null, null), ids);
+            readIds(resolver.query(SMS_URI, new String[]{ "_id" }, selection.sql, selection.argsArray(), null), ids);
+        }
+        reindex(ids);
+    }
+
+    /**
+     * Indexes again the drafts and the rows dated from the last sync on,
+     * edits of a row don't name it. Nothing before the first sync.
+     */
+    private void reindexRecent() {
+        SQLiteDatabase db = getWritableDatabase();
+        long synced = readState(db, "synced_date");
+        if (synced == 0) {
+            return;
+        }
+        long since = synced - RECENT_SLACK_MS;
+        List<Long> ids = new ArrayList<>();
+        readIds(resolver.query(SMS_URI, new String[]{ "_id" }, "date >= ? OR type = ?",
+            new String[]{ String.valueOf(since), String.valueOf(TYPE_DRAFT) }, null), ids);
+        readIds(db.query("message_meta", new String[]{ "_id" }, "type = ?",
+            new String[]{ String.valueOf(TYPE_DRAFT) }, null, null, null), ids);
+        reindex(ids);
+    }
+
+    /**
+     * Moves the watermark of {@link #reindexRecent()} to the newest indexed
+     * date.
+     */
+    private void markSynced() {
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT max(date) FROM message_meta", null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                writeState(db, "synced_date", cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void readIds(Cursor cursor, List<Long> ids) {
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops indexed rows that left the provider, by merging the sorted ids
+     * of both sides.
+     */
+    private void dropDeleted() {
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor provider = resolver.query(SMS_URI, new String[]{ "_id" }, null, null, "_id ASC");
+        if (provider == null) {
+            return;
+        }
+        List<String> gone = new ArrayList<>();
+        Cursor indexed = db.rawQuery("SELECT _id FROM message_meta ORDER BY _id ASC", null);
+        try {
+            boolean hasProvider = provider.moveToNext();
+            while (indexed.moveToNext()) {
+                long id = indexed.getLong(0);
+                while (hasProvider && provider.getLong(0) < id) {
+                    hasProvider = provider.moveToNext();
+                }
+                if (!hasProvider || provider.getLong(0) != id) {
+                    gone.add(String.valueOf(id));
+                }
+            }
+        } finally {
+            provider.close();
+            indexed.close();
+        }
+        for (int from = 0; from < gone.size(); from += MAX_ARGS) {
+            db.beginTransaction();
+            try {
+                delete(db, gone.subList(from, Math.min(from + MAX_ARGS, gone.size())).toArray(new String[0]));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void insert(Cursor row, SQLiteStatement insertMeta, SQLiteStatement insertBody) {
+        insertMeta.clearBindings();
+        insertMeta.bindLong(1, row.getLong(0));
+        insertMeta.bindLong(2, row.getLong(1));
+        bindString(insertMeta, 3, row.getString(2));
+        insertMeta.bindLong(4, row.getLong(3));
+        insertMeta.bindLong(5, row.getLong(4));
+        insertMeta.executeInsert();
+        insertBody.clearBindings();
+        insertBody.bindLong(1, row.getLong(0));
+        bindString(insertBody, 2, row.getString(5));
+        insertBody.executeInsert();
+    }
+
+    private static void delete(SQLiteDatabase db, String[] ids) {
+        SmsQueryEngine.Selection body = new SmsQueryEngine.Selection();
+        body.andIn("docid", ids);
+        db.delete("body_index", body.sql, body.argsArray());
+        SmsQueryEngine.Selection meta = new SmsQueryEngine.Selection();
+        meta.andIn("_id", ids);
+        db.delete("message_meta", meta.sql, meta.argsArray());
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static long readState(SQLiteDatabase db, String key) {
+        Cursor cursor = db.rawQuery("SELECT value FROM index_state WHERE key = ?", new String[]{ key });
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeState(SQLiteDatabase db, String key, long value) {
+        db.execSQL("INSERT OR REPLACE INTO index_state (key, value) VALUES (?, ?)", new Object[]{ key, value });
+    }
+
+    private static class Hit {
+        static final Comparator<Hit> BY_SCORE = new Comparator<Hit>() {
+            @Override
+            public int compare(Hit a, Hit b) {
+                return Double.compare(a.score, b.score);
+            }
+        };
+
+        final long id;
+        final double score;
+
+        Hit(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+}
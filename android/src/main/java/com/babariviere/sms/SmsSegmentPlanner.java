@@ -0,0 +1,219 @@
+package com.babariviere.sms;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells how a body is split in SMS segments.
+ *
+ * A body made only of GSM 03.38 characters is sent with the 7 bit
+ * alphabet: 160 septets in a single segment, 153 per segment once split,
+ * characters of the extension table take two septets and are never split.
+ * Any other character switches the whole body to UCS-2: 70 code units in a
+ * single segment, 67 once split, surrogate pairs are never split.
+ *
+ * National language shift tables are not taken into account, carriers
+ * using them may need fewer segments than planned.
+ */
+
+class SmsSegmentPlanner {
+    static final String ENCODING_GSM = "gsm7";
+    static final String ENCODING_UCS2 = "ucs2";
+    private static final int GSM_SINGLE = 160;
+    private static final int GSM_MULTI = 153;
+    private static final int UCS2_SINGLE = 70;
+    private static final int UCS2_MULTI = 67;
+
+    private static final String GSM_BASIC =
+        "@£$¥èéùìòÇ\nØø\rÅåΔ_ΦΓΛΩΠΨΣΘΞÆæßÉ !\"#¤%&'()*+,-./0123456789:;<=>?"
+        + "¡ABCDEFGHIJKLMNOPQRSTUVWXYZÄÖÑÜ§¿abcdefghijklmnopqrstuvwxyzäöñüà";
+    private static final String GSM_EXTENSION = "\f^{}\\[~]|€";
+    private static final char EURO = '€';
+
+    // septets per char below 0x400: 0 for chars outside the GSM alphabet
+    private static final byte[] SEPTETS = new byte[0x400];
+    // replacements the decomposition of the char does not give
+    private static final Map<Character, String> REPLACEMENTS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < GSM_BASIC.length(); i++) {
+            SEPTETS[GSM_BASIC.charAt(i)] = 1;
+        }
+        for (int i = 0; i < GSM_EXTENSION.length(); i++) {
+            char c = GSM_EXTENSION.charAt(i);
+            if (c < SEPTETS.length) {
+                SEPTETS[c] = 2;
+            }
+        }
+        replace("‘’‚‛′´`", "'");
+        replace("“”„‟″«»", "\"");
+        replace("‐‑‒–—―−", "-");
+        replace("\u00A0\u2002\u2003\u2007\u2009\u202F", " ");
+        replace("•·", "*");
+        replace("…", "...");
+        replace("‹", "<");
+        replace("›", ">");
+        replace("Œ", "OE");
+        replace("œ", "oe");
+    }
+
+    private static void replace(String chars, String replacement) {
+        for (int i = 0; i < chars.length(); i++) {
+            REPLACEMENTS.put(chars.charAt(i), replacement);
+        }
+    }
+
+    /**
+     * Septets taken by {@code c} in the GSM alphabet, 0 when it is not part
+     * of it.
+     */
+    static int septets(char c) {
+        if (c < SEPTETS.length) {
+            return SEPTETS[c];
+        }
+        return c == EURO ? 2 : 0;
+    }
+
+    static Plan plan(String body) {
+        Set<String> unicode = new LinkedHashSet<>();
+        for (int i = 0; i < body.length(); ) {
+            int codePoint = body.codePointAt(i);
+            int count = Character.charCount(codePoint);
+            if (count > 1 || septets(body.charAt(i)) == 0) {
+                unicode.add(body.substring(i, i + count));
+            }
+            i += count;
+        }
+        return unicode.isEmpty() ? planGsm(body) : planUcs2(body, unicode);
+    }
+
+    private static Plan planGsm(String body) {
+        int length = 0;
+        for (int i = 0; i < body.length(); i++) {
+            length += septets(body.charAt(i));
+        }
+        if (length <= GSM_SINGLE) {
+            return new Plan(ENCODING_GSM, body.isEmpty() ? 0 : 1, length, GSM_SINGLE, GSM_SINGLE - length, null);
+        }
+        // an escaped char never straddles two segments
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < body.length(); i++) {
+            int size = septets(body.charAt(i));
+            if (used + size > GSM_MULTI) {
+                segments++;
+                used = 0;
+            }
+            used += size;
+        }
+        return new Plan(ENCODING_GSM, segments, length, GSM_MULTI, GSM_MULTI - used, null);
+    }
+
+    private static Plan planUcs2(String body, Set<String> unicode) {
+        int length = body.length();
+        if (length <= UCS2_SINGLE) {
+            return new Plan(ENCODING_UCS2, 1, length, UCS2_SINGLE, UCS2_SINGLE - length, unicode);
+        }
+        // a surrogate pair never straddles two segments
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < length; ) {
+            int size = Character.charCount(body.codePointAt(i));
+            if (used + size > UCS2_MULTI) {
+                segments++;
+                used = 0;
+            }
+            used += size;
+            i += size;
+        }
+        return new Plan(ENCODING_UCS2, segments, length, UCS2_MULTI, UCS2_MULTI - used, unicode);
+    }
+
+    /**
+     * Replaces the chars outside the GSM alphabet by their closest GSM
+     * spelling (typographic quotes and dashes, accented letters, ...).
+     * Chars without such spelling, emoji for instance, are kept.
+     */
+    static String transliterate(String body) {
+        StringBuilder res = null;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (septets(c) != 0) {
+                if (res != null) {
+                    res.append(c);
+                }
+                continue;
+            }
+            if (res == null) {
+                res = new StringBuilder(body.length());
+                res.append(body, 0, i);
+            }
+            String replacement = REPLACEMENTS.get(c);
+            if (replacement == null) {
+                replacement = stripMarks(c);
+            }
+            res.append(replacement != null ? replacement : String.valueOf(c));
+        }
+        return res != null ? res.toString() : body;
+    }
+
+    /**
+     * {@code c} without its diacritics if that makes it a GSM char.
+     */
+    private static String stripMarks(char c) {
+        String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+        if (decomposed.length() < 2 || Character.isSurrogate(c)) {
+            return null;
+        }
+        char base = decomposed.charAt(0);
+        for (int i = 1; i < decomposed.length(); i++) {
+            if (Character.getType(decomposed.charAt(i)) != Character.NON_SPACING_MARK) {
+                return null;
+            }
+        }
+        return septets(base) != 0 ? String.valueOf(base) : null;
+    }
+
+    static class Plan {
+        final String encoding;
+        final int segments;
+        // septets for GSM, code units for UCS-2
+        final int length;
+        final int perSegment;
+        final int remaining;
+        final Set<String> unicodeChars;
+
+        Plan(String encoding, int segments, int length, int perSegment, int remaining, Set<String> unicodeChars) {
+            this.encoding = encoding;
+            this.segments = segments;
+            this.length = length;
+            this.perSegment = perSegment;
+            this.remaining = remaining;
+            this.unicodeChars = unicodeChars;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject res = new JSONObject();
+            res.put("encoding", encoding);
+            res.put("segments", segments);
+            res.put("length", length);
+            res.put("per_segment", perSegment);
+            res.put("remaining", remaining);
+            JSONArray chars = new JSONArray();
+            if (unicodeChars != null) {
+                for (String c : unicodeChars) {
+                    chars.put(c);
+                }
+            }
+            res.put("unicode_chars", chars);
+            return res;
+        }
+    }
+}
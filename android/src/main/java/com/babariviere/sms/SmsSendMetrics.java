@@ -0,0 +1,125 @@
+package com.babariviere.sms;
+
+import com.babariviere.sms.status.SmsStateChangeReceiver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Send latencies and failures, per subscription.
+ *
+ * Three latencies are measured from the sendSMS/sendBatch call, so they
+ * include the time spent in the queue:
+ * <ul>
+ *   <li>{@code submit}: until {@code sendTextMessage} returns,</li>
+ *   <li>{@code sent}: until the SMS_SENT report of the last part,</li>
+ *   <li>{@code delivered}: until the SMS_DELIVERED report of the last part.</li>
+ * </ul>
+ * Messages recovered from a previous process have no call time and are
+ * only counted in failures.
+ *
+ * Not thread safe, the send queue records and reads it on its own thread.
+ */
+
+class SmsSendMetrics {
+    // key of the default SmsManager
+    static final int DEFAULT_SUB = -1;
+
+    private final Map<Integer, Sub> subs = new TreeMap<>();
+    private long since = System.currentTimeMillis();
+
+    void recordSubmit(int sub, long startNanos) {
+        record(sub(sub).submit, startNanos);
+    }
+
+    void recordSent(int sub, long startNanos) {
+        Sub metrics = sub(sub);
+        metrics.sentCount++;
+        record(metrics.sent, startNanos);
+    }
+
+    void recordDelivered(int sub, long startNanos) {
+        record(sub(sub).delivered, startNanos);
+    }
+
+    void recordFailure(int sub, int resultCode) {
+        Map<Integer, Long> failures = sub(sub).failures;
+        Long count = failures.get(resultCode);
+        failures.put(resultCode, count != null ? count + 1 : 1);
+    }
+
+    private static void record(SmsLatencyHistogram histogram, long startNanos) {
+        if (startNanos != 0) {
+            histogram.record((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    private Sub sub(int sub) {
+        Sub metrics = subs.get(sub);
+        if (metrics == null) {
+            metrics = new Sub();
+            subs.put(sub, metrics);
+        }
+        return metrics;
+    }
+
+    void reset() {
+        subs.clear();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * {@code {since, subs: [{sub_id, sent, submit, sent_latency,
+     * delivered_latency, failures: {name: count}}]}}, latencies in
+     * milliseconds, {@code sub_id} is -1 for the default subscription.
+     */
+    JSONObject toJson() throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("since", since);
+        JSONArray list = new JSONArray();
+        for (Map.Entry<Integer, Sub> entry : subs.entrySet()) {
+            Sub metrics = entry.getValue();
+            JSONObject sub = new JSONObject();
+            sub.put("sub_id", entry.getKey());
+            sub.put("sent", metrics.sentCount);
+            sub.put("submit", metrics.submit.toJson());
+            sub.put("sent_latency", metrics.sent.toJson());
+            sub.put("delivered_latency", metrics.delivered.toJson());
+            JSONObject failures = new JSONObject();
+            for (Map.Entry<Integer, Long> failure : metrics.failures.entrySet()) {
+                failures.put(failureName(failure.getKey()), failure.getValue());
+            }
+            sub.put("failures", failures);
+            list.put(sub);
+        }
+        res.put("subs", list);
+        return res;
+    }
+
+    private static String failureName(int code) {
+        switch (code) {
+            case SmsOutbox.ERROR_TIMEOUT:
+                return "timeout";
+            case SmsOutbox.ERROR_INTERRUPTED:
+                return "interrupted";
+            case SmsOutbox.ERROR_REJECTED:
+                return "rejected";
+            default:
+                String name = SmsStateChangeReceiver.sentResult(code);
+                return "Unknown error code".equals(name) ? String.valueOf(code) : name;
+        }
+    }
+
+    private static class Sub {
+        final SmsLatencyHistogram submit = new SmsLatencyHistogram();
+        final SmsLatencyHistogram sent = new SmsLatencyHistogram();
+        final SmsLatencyHistogram delivered = new SmsLatencyHistogram();
+        final Map<Integer, Long> failures = new LinkedHashMap<>();
+        long sentCount;
+    }
+}
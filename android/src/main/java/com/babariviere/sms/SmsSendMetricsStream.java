@@ -0,0 +1,80 @@
+package com.babariviere.sms;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Streams the send metrics periodically, see {@link SmsSendMetrics#toJson}.
+ *
+ * The optional listen argument {@code interval_ms} sets the period, and
+ * {@code reset} clears the metrics after each event, so every event covers
+ * one period.
+ */
+
+class SmsSendMetricsStream implements EventChannel.StreamHandler {
+    private static final long DEFAULT_INTERVAL_MS = 10 * 1000;
+    private static final long MIN_INTERVAL_MS = 1000;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private EventChannel.EventSink sink;
+    private long interval = DEFAULT_INTERVAL_MS;
+    private boolean reset;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            final EventChannel.EventSink events = sink;
+            if (events == null) {
+                return;
+            }
+            SmsSendQueue.get(context).metrics(reset, new SmsExecutors.MainThreadResult(new MethodChannel.Result() {
+                @Override
+                public void success(Object result) {
+                    if (sink == events) {
+                        events.success(result);
+                    }
+                }
+
+                @Override
+                public void error(String errorCode, String errorMessage, Object errorDetails) {
+                    if (sink == events) {
+                        events.error(errorCode, errorMessage, errorDetails);
+                    }
+                }
+
+                @Override
+                public void notImplemented() {
+                }
+            }));
+            mainHandler.postDelayed(this, interval);
+        }
+    };
+
+    SmsSendMetricsStream(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public void onListen(Object arguments, EventChannel.EventSink events) {
+        MethodCall call = new MethodCall("metrics", arguments);
+        interval = call.hasArgument("interval_ms")
+            ? Math.max(MIN_INTERVAL_MS, ((Number) call.argument("interval_ms")).longValue())
+            : DEFAULT_INTERVAL_MS;
+        reset = call.hasArgument("reset") && Boolean.TRUE.equals(call.argument("reset"));
+        sink = events;
+        mainHandler.removeCallbacks(tick);
+        mainHandler.postDelayed(tick, interval);
+    }
+
+    @Override
+    public void onCancel(Object arguments) {
+        mainHandler.removeCallbacks(tick);
+        sink = null;
+    }
+}
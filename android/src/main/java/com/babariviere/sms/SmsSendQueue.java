@@ -0,0 +1,768 @@
+package com.babariviere.sms;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.babariviere.sms.status.SentReportTracker;
+import com.babariviere.sms.status.SmsStateChangeReceiver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Sends messages at a pace the carrier accepts, and sends them again when
+ * they fail for lack of service.
+ *
+ * Each subscription has its own queue and {@link SmsTokenBucket}, the
+ * queues are served round robin so a long batch on one SIM does not hold
+ * back the others. At most {@code max_in_flight} messages wait for their
+ * SMS_SENT reports at once, the reports of all its parts (or
+ * {@code SENT_TIMEOUT_MS} without them) free the slot for the next message.
+ *
+ * With balancing on, messages without a subscription are sent on the
+ * active subscription the {@link SmsSubscriptionScheduler} ranks first
+ * among those with a token, and ranked again on every attempt.
+ *
+ * Every message is journaled in the {@link SmsOutbox} before it is queued.
+ * A transient failure (see {@link SmsStateChangeReceiver#isTransientFailure})
+ * queues the message again after an exponential backoff, or as soon as
+ * the service comes back, up to {@code MAX_ATTEMPTS} attempts. Messages
+ * still queued when the process died are queued again by {@link #recover()}
+ * once SEND_SMS is granted.
+ *
+ * Latencies and failures are recorded in {@link SmsSendMetrics}. The
+ * receiver keeps listening to SMS_DELIVERED for up to
+ * {@code DELIVERY_WINDOW_MS} after a message is sent.
+ *
+ * Progress of a batch is reported on the progress channel under the "send"
+ * operation: {@code {operation, id, done, total, failed}}. The state of
+ * each message is still reported by the sent/delivered receivers, with the
+ * {@code sentId} given by the caller.
+ *
+ * Everything runs on the queue thread.
+ */
+
+class SmsSendQueue {
+    private static final String TAG = "SmsSendQueue";
+    static final double DEFAULT_PER_SECOND = 1;
+    static final int DEFAULT_BURST = 5;
+    static final int DEFAULT_MAX_IN_FLIGHT = 10;
+    // a message without SMS_SENT report after this delay is counted as failed
+    static final long SENT_TIMEOUT_MS = 60 * 1000;
+    static final int MAX_ATTEMPTS = 5;
+    static final long DEFAULT_QUOTA_WINDOW_MS = 24 * 60 * 60 * 1000;
+    private static final long BACKOFF_BASE_MS = 5 * 1000;
+    private static final long BACKOFF_MAX_MS = 10 * 60 * 1000;
+    // sent and failed messages stay in the journal this long
+    private static final long RETENTION_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final String OPERATION = "send";
+    // sent messages whose delivery is timed, and for how long
+    private static final int MAX_AWAITING_DELIVERY = 10000;
+    private static final long DELIVERY_WINDOW_MS = 60 * 60 * 1000;
+    // key of the default SmsManager in the per subscription maps
+    private static final int DEFAULT_SUB = SmsSendMetrics.DEFAULT_SUB;
+
+    private static SmsSendQueue instance;
+
+    private final Context context;
+    private final SmsTransmitter transmitter;
+    private final SmsOutbox outbox;
+    private final Handler handler;
+    private final SmsProgressStream progress = SmsProgressStream.get();
+    private final Random random = new Random();
+
+    // only touched on the queue thread
+    private final LinkedHashMap<Integer, ArrayDeque<Entry>> queues = new LinkedHashMap<>();
+    // messages waiting for their next attempt, by wall clock time
+    private final PriorityQueue<Entry> waiting = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.nextAttemptAt < b.nextAttemptAt ? -1 : (a.nextAttemptAt == b.nextAttemptAt ? 0 : 1);
+        }
+    });
+    private final Map<Integer, SmsTokenBucket> buckets = new HashMap<>();
+    private final Map<Integer, Rate> rates = new HashMap<>();
+    private Rate defaultRate = new Rate(DEFAULT_PER_SECOND, DEFAULT_BURST);
+    private final Map<Long, Entry> inFlight = new HashMap<>();
+    private final Map<String, Batch> batches = new HashMap<>();
+    // oldest first
+    private final LinkedHashMap<Long, Delivery> awaitingDelivery = new LinkedHashMap<>();
+    private final SmsSendMetrics metrics = new SmsSendMetrics();
+    private final SmsSubscriptionScheduler scheduler;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private boolean recovered;
+    private boolean registered;
+    private PhoneStateListener serviceListener;
+
+    private final Runnable pump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    private final BroadcastReceiver sentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            SentReportTracker.Report report = SentReportTracker.get().resolve(intent);
+            if (report == null) {
+                return;
+            }
+            long id = report.outboxId;
+            if (SmsTransmitter.ACTION_DELIVERED.equals(intent.getAction())) {
+                // frees the slot of the part, whether Dart listens or not
+                report.done();
+                onDelivered(id);
+                return;
+            }
+            Entry entry = inFlight.get(id);
+            if (entry == null) {
+                // a report of a message given up on
+                return;
+            }
+            int resultCode = getResultCode();
+            if (resultCode != Activity.RESULT_OK) {
+                entry.error = resultCode;
+                // no delivery report follows a failure
+                report.done();
+            }
+            // a multipart message is done once every part is reported
+            if (--entry.partsLeft > 0) {
+                return;
+            }
+            inFlight.remove(id);
+            handler.removeCallbacks(entry);
+            scheduler.onResult(entry.route, entry.error == Activity.RESULT_OK, SystemClock.uptimeMillis());
+            if (entry.error == Activity.RESULT_OK) {
+                outbox.markSent(entry.id);
+                metrics.recordSent(entry.route, entry.sms.requestedAt);
+                if (entry.sms.requestedAt != 0) {
+                    awaitDelivery(entry);
+                }
+                finish(entry, true);
+                pump();
+                return;
+            }
+            metrics.recordFailure(entry.route, entry.error);
+            if (canRetry(entry) && SmsStateChangeReceiver.isTransientFailure(entry.error)) {
+                retryLater(entry);
+            } else {
+                outbox.markFailed(entry.id, entry.error);
+                finish(entry, false);
+            }
+            pump();
+        }
+    };
+
+    private SmsSendQueue(Context context) {
+        this.context = context;
+        this.transmitter = new SmsTransmitter(context);
+        this.outbox = new SmsOutbox(context);
+        this.scheduler = new SmsSubscriptionScheduler(context);
+        HandlerThread thread = new HandlerThread("sms-send");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    static synchronized SmsSendQueue get(Context context) {
+        if (instance == null) {
+            instance = new SmsSendQueue(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Journals and queues {@code messages}. A batch is replied with
+     * {@code {batch_id, queued}} and reports its progress, a single message
+     * is replied with null. Both are replied once journaled, not sent.
+     *
+     * A call with the {@code idempotencyKey} of a call of the last
+     * {@link SmsOutbox#KEY_WINDOW_MS} is replied with the state of the
+     * first one, see {@link SmsOutbox#findKey}, and sends nothing.
+     */
+    void enqueue(final List<OutgoingSms> messages, final boolean batch, final String idempotencyKey,
+                 final MethodChannel.Result result) {
+        recover();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                String batchId = batch ? UUID.randomUUID().toString() : null;
+                long[] ids;
+                try {
+                    if (idempotencyKey != null) {
+                        JSONObject previous = outbox.findKey(idempotencyKey,
+                            System.currentTimeMillis() - SmsOutbox.KEY_WINDOW_MS);
+                        if (previous != null) {
+                            result.success(previous);
+                            return;
+                        }
+                    }
+                    ids = outbox.insert(messages, batchId, idempotencyKey);
+                } catch (RuntimeException | JSONException e) {
+                    Log.d(TAG, e.toString());
+                    result.error("#03", e.getMessage(), null);
+                    return;
+                }
+                Batch owner = null;
+                if (batchId != null) {
+                    owner = new Batch(batchId, messages.size());
+                    batches.put(batchId, owner);
+                }
+                for (int i = 0; i < ids.length; i++) {
+                    queue(new Entry(ids[i], messages.get(i), owner, 0), false);
+                }
+                if (batchId == null) {
+                    result.success(null);
+                } else {
+                    try {
+                        JSONObject res = new JSONObject();
+                        res.put("batch_id", batchId);
+                        res.put("queued", ids.length);
+                        result.success(res);
+                    } catch (JSONException e) {
+                        result.error("#03", e.getMessage(), null);
+                    }
+                }
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Paces {@code subId} (every subscription without its own rate when
+     * null) at {@code perSecond} messages per second after a burst of
+     * {@code burst} messages.
+     */
+    void setRate(final Integer subId, final double perSecond, final int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("per_second must be positive and burst at least 1");
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Rate rate = new Rate(perSecond, burst);
+                if (subId == null) {
+                    defaultRate = rate;
+                    // buckets built from the previous default
+                    Iterator<Integer> subs = buckets.keySet().iterator();
+                    while (subs.hasNext()) {
+                        if (!rates.containsKey(subs.next())) {
+                            subs.remove();
+                        }
+                    }
+                } else {
+                    rates.put(subId, rate);
+                    buckets.remove(subId);
+                }
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Spreads the messages without a subscription over the active ones
+     * when {@code balance} is set.
+     */
+    void setBalance(final boolean balance) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.setEnabled(balance);
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Caps {@code subId} to {@code limit} messages per {@code windowMs},
+     * removes its quota when {@code limit} is 0.
+     */
+    void setQuota(final int subId, final int limit, final long windowMs) {
+        if (limit < 0 || (limit > 0 && windowMs <= 0)) {
+            throw new IllegalArgumentException("quota must not be negative and quota_window_ms must be positive");
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                int used = 0;
+                if (limit > 0) {
+                    try {
+                        used = outbox.countSentOn(subId, System.currentTimeMillis() - windowMs);
+                    } catch (RuntimeException e) {
+                        Log.d(TAG, e.toString());
+                    }
+                }
+                scheduler.setQuota(subId, limit, windowMs, used);
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Replies with the state of the subscriptions, see
+     * {@link SmsSubscriptionScheduler#toJson}.
+     */
+    void scheduler(final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.success(scheduler.toJson(SystemClock.uptimeMillis()));
+                } catch (JSONException e) {
+                    result.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    void setMaxInFlight(final int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max_in_flight must be at least 1");
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                maxInFlight = max;
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Replies with the journaled messages, newest first, see
+     * {@link SmsOutbox#list}.
+     */
+    void list(final String state, final int limit, final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONArray rows = outbox.list(state, limit);
+                    result.success(rows);
+                } catch (RuntimeException | JSONException e) {
+                    Log.d(TAG, e.toString());
+                    result.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replies with the {@link SmsSendMetrics}, cleared afterwards when
+     * {@code reset} is set, and {@code pending_reports}: the parts still
+     * waiting for a report in the {@link SentReportTracker}.
+     */
+    void metrics(final boolean reset, final MethodChannel.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject res = metrics.toJson();
+                    res.put("pending_reports", SentReportTracker.get().pending());
+                    if (reset) {
+                        metrics.reset();
+                    }
+                    result.success(res);
+                } catch (JSONException e) {
+                    result.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues again what a previous process left in the journal, once. Only
+     * call it with SEND_SMS granted: without it every recovered message
+     * would fail for good. Reading and configuring the queue don't need it.
+     */
+    void recover() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!recovered) {
+                    recovered = true;
+                    recoverJournal();
+                }
+            }
+        });
+    }
+
+    private void recoverJournal() {
+        try {
+            outbox.prune(System.currentTimeMillis() - RETENTION_MS);
+            outbox.pruneKeys(System.currentTimeMillis() - SmsOutbox.KEY_WINDOW_MS);
+            for (SmsOutbox.Row row : outbox.recover()) {
+                Batch batch = null;
+                if (row.batchId != null) {
+                    batch = batches.get(row.batchId);
+                    if (batch == null) {
+                        // only what is left of the batch
+                        batch = new Batch(row.batchId, 0);
+                        batches.put(row.batchId, batch);
+                    }
+                    batch.total++;
+                }
+                Entry entry = new Entry(row.id, row.sms, batch, row.attempts);
+                entry.nextAttemptAt = row.nextAttemptAt;
+                queue(entry, false);
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, e.toString());
+        }
+        pump();
+    }
+
+    /**
+     * Queues {@code entry} for sending, or for later when its next attempt
+     * is not due. {@code first} puts it ahead of its queue.
+     */
+    private void queue(Entry entry, boolean first) {
+        if (entry.nextAttemptAt > System.currentTimeMillis()) {
+            waiting.add(entry);
+            return;
+        }
+        int sub = entry.sms.subId != null ? entry.sms.subId : DEFAULT_SUB;
+        ArrayDeque<Entry> queue = queues.get(sub);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(sub, queue);
+        }
+        if (first) {
+            queue.addFirst(entry);
+        } else {
+            queue.add(entry);
+        }
+    }
+
+    /**
+     * Sends what the buckets and the in flight limit allow, then schedules
+     * itself for the next token or the next retry. Reports call it again
+     * when slots free up.
+     */
+    private void pump() {
+        handler.removeCallbacks(pump);
+        long wallNow = System.currentTimeMillis();
+        while (!waiting.isEmpty() && waiting.peek().nextAttemptAt <= wallNow) {
+            queue(waiting.poll(), true);
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long wait = Long.MAX_VALUE;
+        boolean progressed = true;
+        // one message per subscription and pass, so the queues share the slots
+        while (progressed && inFlight.size() < maxInFlight) {
+            progressed = false;
+            Iterator<Map.Entry<Integer, ArrayDeque<Entry>>> it = queues.entrySet().iterator();
+            while (it.hasNext() && inFlight.size() < maxInFlight) {
+                Map.Entry<Integer, ArrayDeque<Entry>> queue = it.next();
+                List<Integer> routes = queue.getKey() == DEFAULT_SUB ? scheduler.candidates(now) : null;
+                if (routes == null) {
+                    routes = Collections.singletonList(queue.getKey());
+                } else if (routes.isEmpty()) {
+                    wait = Math.min(wait, scheduler.delayUntilQuota());
+                }
+                int route = DEFAULT_SUB;
+                boolean acquired = false;
+                for (int candidate : routes) {
+                    SmsTokenBucket bucket = bucketFor(candidate, now);
+                    if (bucket.tryAcquire(now)) {
+                        route = candidate;
+                        acquired = true;
+                        break;
+                    }
+                    wait = Math.min(wait, bucket.delayUntilToken(now));
+                }
+                if (!acquired) {
+                    continue;
+                }
+                transmit(queue.getValue().poll(), route, now);
+                progressed = true;
+                if (queue.getValue().isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        if (queues.isEmpty() || inFlight.size() >= maxInFlight) {
+            wait = Long.MAX_VALUE;
+        }
+        if (!waiting.isEmpty()) {
+            wait = Math.min(wait, waiting.peek().nextAttemptAt - wallNow);
+        }
+        // deliveries not reported in time are no longer waited for
+        Iterator<Delivery> deliveries = awaitingDelivery.values().iterator();
+        while (deliveries.hasNext()) {
+            long left = deliveries.next().sentAt + DELIVERY_WINDOW_MS - now;
+            if (left > 0) {
+                wait = Math.min(wait, left);
+                break;
+            }
+            deliveries.remove();
+        }
+        if (wait != Long.MAX_VALUE) {
+            handler.postDelayed(pump, Math.max(wait, 1));
+        }
+        updateReceiver();
+        updateServiceListener();
+    }
+
+    /**
+     * Sends {@code entry} on {@code route}, a subscription or
+     * {@code DEFAULT_SUB}.
+     */
+    private void transmit(Entry entry, int route, long now) {
+        entry.attempts++;
+        entry.error = Activity.RESULT_OK;
+        entry.route = route;
+        inFlight.put(entry.id, entry);
+        scheduler.onTransmit(route);
+        try {
+            outbox.markSending(entry.id, entry.attempts, route);
+            entry.requestCodes = transmitter.send(entry.sms, route != DEFAULT_SUB ? route : null, entry.id,
+                canRetry(entry));
+            entry.partsLeft = entry.requestCodes.length;
+            metrics.recordSubmit(route, entry.sms.requestedAt);
+            handler.postDelayed(entry, SENT_TIMEOUT_MS);
+        } catch (RuntimeException e) {
+            Log.d(TAG, e.toString());
+            inFlight.remove(entry.id);
+            scheduler.onResult(route, false, now);
+            outbox.markFailed(entry.id, SmsOutbox.ERROR_REJECTED);
+            metrics.recordFailure(route, SmsOutbox.ERROR_REJECTED);
+            finish(entry, false);
+        }
+    }
+
+    private void awaitDelivery(Entry entry) {
+        if (awaitingDelivery.size() >= MAX_AWAITING_DELIVERY) {
+            Iterator<Long> eldest = awaitingDelivery.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        awaitingDelivery.put(entry.id, new Delivery(entry.route, entry.sms.requestedAt, entry.requestCodes.length,
+            SystemClock.uptimeMillis()));
+    }
+
+    private void onDelivered(long id) {
+        Delivery delivery = awaitingDelivery.get(id);
+        if (delivery == null || --delivery.partsLeft > 0) {
+            return;
+        }
+        awaitingDelivery.remove(id);
+        metrics.recordDelivered(delivery.sub, delivery.startNanos);
+        updateReceiver();
+    }
+
+    private boolean canRetry(Entry entry) {
+        return entry.attempts < MAX_ATTEMPTS;
+    }
+
+    private void retryLater(Entry entry) {
+        long delay = Math.min(BACKOFF_BASE_MS << (entry.attempts - 1), BACKOFF_MAX_MS);
+        // +-20% so messages that failed together do not come back together
+        delay += (long) (delay * (random.nextDouble() - 0.5) * 0.4);
+        entry.nextAttemptAt = System.currentTimeMillis() + delay;
+        outbox.markRetry(entry.id, entry.nextAttemptAt, entry.error);
+        waiting.add(entry);
+    }
+
+    private void finish(Entry entry, boolean sent) {
+        Batch batch = entry.batch;
+        if (batch == null) {
+            return;
+        }
+        batch.done++;
+        if (!sent) {
+            batch.failed++;
+        }
+        if (batch.done == batch.total) {
+            batches.remove(batch.id);
+        } else if (!batch.throttle.ready()) {
+            return;
+        }
+        try {
+            JSONObject event = new JSONObject();
+            event.put("operation", OPERATION);
+            event.put("id", batch.id);
+            event.put("done", batch.done);
+            event.put("total", batch.total);
+            event.put("failed", batch.failed);
+            progress.emit(event);
+        } catch (JSONException e) {
+            Log.d(TAG, e.toString());
+        }
+    }
+
+    private SmsTokenBucket bucketFor(int sub, long now) {
+        SmsTokenBucket bucket = buckets.get(sub);
+        if (bucket == null) {
+            Rate rate = rates.containsKey(sub) ? rates.get(sub) : defaultRate;
+            bucket = new SmsTokenBucket(rate.perSecond, rate.burst, now);
+            buckets.put(sub, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Listens to the reports only while messages are in flight or awaiting
+     * their delivery.
+     */
+    private void updateReceiver() {
+        boolean busy = !inFlight.isEmpty() || !awaitingDelivery.isEmpty();
+        if (busy && !registered) {
+            IntentFilter filter = new IntentFilter(SmsTransmitter.ACTION_SENT);
+            filter.addAction(SmsTransmitter.ACTION_DELIVERED);
+            context.registerReceiver(sentReceiver, filter, null, handler);
+            registered = true;
+        } else if (!busy && registered) {
+            context.unregisterReceiver(sentReceiver);
+            registered = false;
+        }
+    }
+
+    /**
+     * Watches the service state while messages wait for a retry, they are
+     * all sent as soon as the service is back.
+     */
+    @SuppressWarnings("deprecation")
+    private void updateServiceListener() {
+        TelephonyManager telephony = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        if (telephony == null) {
+            return;
+        }
+        try {
+            if (!waiting.isEmpty() && serviceListener == null) {
+                // created on the queue thread, so it is called there
+                serviceListener = new PhoneStateListener() {
+                    @Override
+                    public void onServiceStateChanged(ServiceState state) {
+                        if (state.getState() == ServiceState.STATE_IN_SERVICE) {
+                            retryNow();
+                        }
+                    }
+                };
+                telephony.listen(serviceListener, PhoneStateListener.LISTEN_SERVICE_STATE);
+            } else if (waiting.isEmpty() && serviceListener != null) {
+                telephony.listen(serviceListener, PhoneStateListener.LISTEN_NONE);
+                serviceListener = null;
+            }
+        } catch (SecurityException e) {
+            // READ_PHONE_STATE may be revoked, the backoff still applies
+            Log.d(TAG, e.toString());
+        }
+    }
+
+    private void retryNow() {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : waiting) {
+            entry.nextAttemptAt = now;
+        }
+        pump();
+    }
+
+    private static class Rate {
+        final double perSecond;
+        final int burst;
+
+        Rate(double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+    }
+
+    private static class Delivery {
+        final int sub;
+        final long startNanos;
+        final long sentAt;
+        int partsLeft;
+
+        Delivery(int sub, long startNanos, int parts, long sentAt) {
+            this.sub = sub;
+            this.startNanos = startNanos;
+            this.partsLeft = parts;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private static class Batch {
+        final String id;
+        final SmsProgressStream.Throttle throttle =
+            new SmsProgressStream.Throttle(SmsProgressStream.DEFAULT_INTERVAL_MS);
+        int total;
+        int done;
+        int failed;
+
+        Batch(String id, int total) {
+            this.id = id;
+            this.total = total;
+        }
+    }
+
+    /**
+     * A journaled message, runs as the timeout of its SMS_SENT reports.
+     */
+    private class Entry implements Runnable {
+        final long id;
+        final OutgoingSms sms;
+        final Batch batch;
+        int attempts;
+        long nextAttemptAt;
+        // subscription of the current attempt
+        int route = DEFAULT_SUB;
+        // of the parts of the current attempt
+        int[] requestCodes;
+        int partsLeft;
+        // result code of the last failed part of the current attempt
+        int error = Activity.RESULT_OK;
+
+        Entry(long id, OutgoingSms sms, Batch batch, int attempts) {
+            this.id = id;
+            this.sms = sms;
+            this.batch = batch;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public void run() {
+            if (inFlight.remove(id) != null) {
+                Log.d(TAG, "no sent report for message " + sms.sentId);
+                // given up on, its parts free their slots
+                for (int requestCode : requestCodes) {
+                    SentReportTracker.get().done(requestCode);
+                }
+                outbox.markFailed(id, SmsOutbox.ERROR_TIMEOUT);
+                scheduler.onResult(route, false, SystemClock.uptimeMillis());
+                metrics.recordFailure(route, SmsOutbox.ERROR_TIMEOUT);
+                finish(this, false);
+                pump();
+            }
+        }
+    }
+}
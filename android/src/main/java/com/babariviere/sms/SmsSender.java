@@ -1,14 +1,9 @@
 package com.babariviere.sms;
 
 import android.Manifest;
-import android.annotation.TargetApi;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.provider.Telephony;
-import android.telephony.SmsManager;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
@@ -16,11 +11,16 @@ import androidx.core.content.ContextCompat;
 
 import com.babariviere.sms.permisions.Permissions;
 
-import java.util.UUID;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
 import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
@@ -37,22 +37,22 @@ public class SmsSender
                PluginRegistry.RequestPermissionsResultListener {
 
     private static final String CHANNEL_SEND = "plugins.babariviere.com/sendSMS";
+    private static final String CHANNEL_SEND_METRICS = "plugins.babariviere.com/sendMetrics";
     private static final int PERMISSION_REQUEST_CODE = Permissions.SEND_SMS_ID_REQ;
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 256;
     private final String[] permissionsList = {
         Manifest.permission.SEND_SMS,
         Manifest.permission.READ_PHONE_STATE
     };
 
     private MethodChannel channel;
+    private EventChannel metricsChannel;
+    private SmsSendMetricsStream metricsStream;
     private Context context;
     private ActivityPluginBinding activityBinding;
 
-    // pending parameters for SMS send
-    private MethodChannel.Result pendingResult;
-    private String pendingAddress;
-    private String pendingBody;
-    private int pendingSentId;
-    private Integer pendingSubId;
+    // sends in flight, waiting for permissions or for the SmsManager
+    private final PendingCalls<MethodCall> pendingCalls = new PendingCalls<>();
 
     /** 
      * Register the MethodChannel when engine is attached 
@@ -62,6 +62,19 @@ public class SmsSender
         context = binding.getApplicationContext();
         channel = new MethodChannel(binding.getBinaryMessenger(), CHANNEL_SEND, JSONMethodCodec.INSTANCE);
         channel.setMethodCallHandler(this);
+        metricsStream = new SmsSendMetricsStream(context);
+        metricsChannel = new EventChannel(
+            binding.getBinaryMessenger(),
+            CHANNEL_SEND_METRICS,
+            JSONMethodCodec.INSTANCE
+        );
+        metricsChannel.setStreamHandler(metricsStream);
+
+        // sends what a previous process left in the outbox
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.SEND_SMS)
+            == PackageManager.PERMISSION_GRANTED) {
+            SmsSendQueue.get(context).recover();
+        }
     }
 
     /**
@@ -71,6 +84,10 @@ public class SmsSender
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         channel.setMethodCallHandler(null);
         channel = null;
+        metricsChannel.setStreamHandler(null);
+        metricsChannel = null;
+        metricsStream.onCancel(null);
+        metricsStream = null;
         context = null;
     }
 
@@ -106,25 +123,90 @@ public class SmsSender
      */
     @Override
     public void onMethodCall(@NonNull MethodCall call, @NonNull MethodChannel.Result result) {
-        if (!"sendSMS".equals(call.method)) {
-            result.notImplemented();
-            return;
+        switch (call.method) {
+            case "sendSMS":
+            case "sendBatch":
+                break;
+            case "getOutbox":
+                SmsSendQueue.get(context).list(
+                    call.<String>argument("state"),
+                    call.argument("limit") != null ? ((Number) call.argument("limit")).intValue() : 0,
+                    new SmsExecutors.MainThreadResult(result)
+                );
+                return;
+            case "getSendMetrics":
+                SmsSendQueue.get(context).metrics(
+                    call.hasArgument("reset") && Boolean.TRUE.equals(call.argument("reset")),
+                    new SmsExecutors.MainThreadResult(result)
+                );
+                return;
+            case "configureSendScheduler":
+                // balance spreads messages without subId over the active SIMs,
+                // quota (0 removes it) caps sub_id to quota messages per quota_window_ms
+                try {
+                    SmsSendQueue queue = SmsSendQueue.get(context);
+                    if (call.hasArgument("quota")) {
+                        Integer subId = call.argument("sub_id");
+                        if (subId == null) {
+                            throw new IllegalArgumentException("quota needs a sub_id");
+                        }
+                        queue.setQuota(
+                            subId,
+                            (int) call.argument("quota"),
+                            call.hasArgument("quota_window_ms")
+                                ? ((Number) call.argument("quota_window_ms")).longValue()
+                                : SmsSendQueue.DEFAULT_QUOTA_WINDOW_MS
+                        );
+                    }
+                    if (call.hasArgument("balance")) {
+                        queue.setBalance(Boolean.TRUE.equals(call.argument("balance")));
+                    }
+                    result.success(null);
+                } catch (IllegalArgumentException e) {
+                    result.error("#02", e.getMessage(), null);
+                }
+                return;
+            case "getSendScheduler":
+                SmsSendQueue.get(context).scheduler(new SmsExecutors.MainThreadResult(result));
+                return;
+            case "planMessage":
+                planMessage(call, result);
+                return;
+            case "configureSendRate":
+                // sub_id null sets the rate of every subscription without its own
+                try {
+                    SmsSendQueue queue = SmsSendQueue.get(context);
+                    if (call.hasArgument("per_second") || call.hasArgument("burst")) {
+                        queue.setRate(
+                            call.<Integer>argument("sub_id"),
+                            call.hasArgument("per_second")
+                                ? ((Number) call.argument("per_second")).doubleValue()
+                                : SmsSendQueue.DEFAULT_PER_SECOND,
+                            call.hasArgument("burst") ? (int) call.argument("burst") : SmsSendQueue.DEFAULT_BURST
+                        );
+                    }
+                    if (call.hasArgument("max_in_flight")) {
+                        queue.setMaxInFlight((int) call.argument("max_in_flight"));
+                    }
+                    result.success(null);
+                } catch (IllegalArgumentException e) {
+                    result.error("#02", e.getMessage(), null);
+                }
+                return;
+            default:
+                result.notImplemented();
+                return;
         }
 
-        // extract arguments
-        pendingAddress = call.argument("address");
-        pendingBody    = call.argument("body");
-        pendingSentId  = call.argument("sentId");
-        pendingSubId   = call.argument("subId");
-
-        pendingResult = result;
-
         // check and request permissions if needed
-        if (ContextCompat.checkSelfPermission(context, Manifest.permission.SEND_SMS)
-            != PackageManager.PERMISSION_GRANTED ||
+        boolean granted =
+            ContextCompat.checkSelfPermission(context, Manifest.permission.SEND_SMS)
+            == PackageManager.PERMISSION_GRANTED &&
             ContextCompat.checkSelfPermission(context, Manifest.permission.READ_PHONE_STATE)
-            != PackageManager.PERMISSION_GRANTED) {
+            == PackageManager.PERMISSION_GRANTED;
+        PendingCalls.Call<MethodCall> pending = pendingCalls.add(call, result, !granted);
 
+        if (!granted) {
             ActivityCompat.requestPermissions(
                 activityBinding.getActivity(),
                 permissionsList,
@@ -132,7 +214,7 @@ public class SmsSender
             );
 
         } else {
-            sendSmsMessage();
+            send(pending);
         }
     }
 
@@ -148,54 +230,77 @@ public class SmsSender
         // verify all permissions granted
         for (int res : grantResults) {
             if (res != PackageManager.PERMISSION_GRANTED) {
-                pendingResult.error("#01", "permission denied for sending sms", null);
+                for (PendingCalls.Call<MethodCall> pending : pendingCalls.takeAwaitingPermission()) {
+                    pending.error("#01", "permission denied for sending sms", null);
+                }
                 return false;
             }
         }
 
         // permissions granted, proceed to send SMS
-        sendSmsMessage();
+        for (PendingCalls.Call<MethodCall> pending : pendingCalls.takeAwaitingPermission()) {
+            send(pending);
+        }
         return true;
     }
 
     /**
-     * Original logic to send an SMS message
+     * Every message goes through the outbox, so it is paced and sent again
+     * after a transient failure. Calls are replied once the messages are
+     * journaled. A repeated {@code idempotencyKey} is replied with the state
+     * of the first call instead.
      */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private void sendSmsMessage() {
-        // prepare intents for sent and delivered events
-        Intent sentIntent = new Intent("SMS_SENT");
-        sentIntent.putExtra("sentId", pendingSentId);
-        PendingIntent sentPI = PendingIntent.getBroadcast(
-            context,
-            0,
-            sentIntent,
-            PendingIntent.FLAG_UPDATE_CURRENT
-        );
-
-        Intent deliveredIntent = new Intent("SMS_DELIVERED");
-        deliveredIntent.putExtra("sentId", pendingSentId);
-        PendingIntent deliveredPI = PendingIntent.getBroadcast(
-            context,
-            UUID.randomUUID().hashCode(),
-            deliveredIntent,
-            PendingIntent.FLAG_UPDATE_CURRENT
-        );
+    private void send(PendingCalls.Call<MethodCall> pending) {
+        try {
+            boolean batch = "sendBatch".equals(pending.params.method);
+            List<OutgoingSms> messages = batch
+                ? OutgoingSms.listFromCall(pending.params)
+                : Collections.singletonList(OutgoingSms.fromCall(pending.params));
+            for (OutgoingSms sms : messages) {
+                if (sms.address == null || sms.body == null) {
+                    throw new IllegalArgumentException("a message needs an address and a body");
+                }
+                if (sms.subId != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
+                    pending.error("#03", "this version of android does not support multicard SIM", null);
+                    return;
+                }
+            }
+            String idempotencyKey = pending.params.argument("idempotencyKey");
+            if (idempotencyKey != null
+                && (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+                throw new IllegalArgumentException(
+                    "idempotencyKey must have 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " chars");
+            }
+            SmsSendQueue.get(context).enqueue(messages, batch, idempotencyKey, pending);
+        } catch (IllegalArgumentException e) {
+            pending.error("#02", e.getMessage(), null);
+        }
+    }
 
-        // choose appropriate SmsManager instance
-        SmsManager smsManager;
-        if (pendingSubId == null) {
-            smsManager = SmsManager.getDefault();
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
-            smsManager = SmsManager.getSmsManagerForSubscriptionId(pendingSubId);
-        } else {
-            pendingResult.error("#03", "this version of android does not support multicard SIM", null);
+    /**
+     * Replies with the encoding and segments {@code body} needs, see
+     * {@link SmsSegmentPlanner.Plan}. With {@code transliterate}, the plan
+     * is the one of the transliterated body, returned as {@code body}, and
+     * {@code original_segments} is the segment count without it.
+     */
+    private void planMessage(MethodCall call, MethodChannel.Result result) {
+        String body = call.argument("body");
+        if (body == null) {
+            result.error("#02", "missing body", null);
             return;
         }
-
-        // send the text message
-        smsManager.sendTextMessage(pendingAddress, null, pendingBody, sentPI, deliveredPI);
-        pendingResult.success(null);
+        try {
+            if (Boolean.TRUE.equals(call.argument("transliterate"))) {
+                String transliterated = SmsSegmentPlanner.transliterate(body);
+                JSONObject res = SmsSegmentPlanner.plan(transliterated).toJson();
+                res.put("body", transliterated);
+                res.put("original_segments", SmsSegmentPlanner.plan(body).segments);
+                result.success(res);
+            } else {
+                result.success(SmsSegmentPlanner.plan(body).toJson());
+            }
+        } catch (JSONException e) {
+            result.error("#03", e.getMessage(), null);
+        }
     }
 }
-
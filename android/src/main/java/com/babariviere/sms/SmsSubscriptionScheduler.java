@@ -0,0 +1,271 @@
+package com.babariviere.sms;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spreads the messages sent without a subscription over the active ones.
+ *
+ * Subscriptions are ranked by their messages in flight, weighted by their
+ * recent failure rate (an exponential average of the last outcomes), so a
+ * SIM that loses service takes less traffic until it sends again. A SIM
+ * whose quota ({@code limit} messages per {@code window_ms}) is used up is
+ * skipped until its window ends; every message sent on it counts,
+ * balanced or not. Quota windows follow the wall clock, so they keep
+ * running while the device sleeps, and start with the use the outbox
+ * journaled for the last window, so a restart doesn't reset them.
+ *
+ * The active subscriptions are read from the {@link SubscriptionManager}
+ * at most every {@code REFRESH_MS}. Below Android 5.1, or without
+ * READ_PHONE_STATE, there is nothing to balance over and messages go to
+ * the default SmsManager.
+ *
+ * Not thread safe, the send queue uses it on its own thread.
+ */
+
+class SmsSubscriptionScheduler {
+    private static final String TAG = "SmsSubscriptionSched";
+    private static final long REFRESH_MS = 30 * 1000;
+    // weight of the last outcome in the failure rate
+    private static final double FAILURE_ALPHA = 0.2;
+    // a failing SIM still gets a share, so its rate can come down again
+    private static final double MAX_FAILURE_RATE = 0.9;
+    // sent per minute, from 12 buckets of 5 seconds
+    private static final int THROUGHPUT_BUCKETS = 12;
+    private static final long THROUGHPUT_BUCKET_MS = 5 * 1000;
+
+    private final Context context;
+    private final Map<Integer, Sub> subs = new TreeMap<>();
+    private List<Integer> active = Collections.emptyList();
+    private long refreshedAt = -REFRESH_MS;
+    private boolean enabled;
+
+    SmsSubscriptionScheduler(Context context) {
+        this.context = context;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Caps {@code subId} to {@code limit} messages per {@code windowMs},
+     * removes its quota when {@code limit} is 0. The window starts now,
+     * with {@code used} messages already sent in it.
+     */
+    void setQuota(int subId, int limit, long windowMs, int used) {
+        Sub sub = sub(subId);
+        sub.quota = limit;
+        sub.quotaWindow = windowMs;
+        sub.windowStart = System.currentTimeMillis();
+        sub.windowUsed = used;
+    }
+
+    /**
+     * Active subscriptions that may take a message now, best first, empty
+     * when their quotas are used up; null when balancing is off or there is
+     * only the default SmsManager.
+     */
+    List<Integer> candidates(long now) {
+        if (!enabled) {
+            return null;
+        }
+        refresh(now);
+        if (active.isEmpty()) {
+            return null;
+        }
+        long wallNow = System.currentTimeMillis();
+        List<Integer> res = new ArrayList<>(active.size());
+        for (int subId : active) {
+            if (sub(subId).hasQuota(wallNow)) {
+                res.add(subId);
+            }
+        }
+        Collections.sort(res, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(sub(a).load(), sub(b).load());
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Time until the first used up quota of an active subscription frees
+     * up, {@code Long.MAX_VALUE} when none is.
+     */
+    long delayUntilQuota() {
+        long wallNow = System.currentTimeMillis();
+        long wait = Long.MAX_VALUE;
+        for (int subId : active) {
+            Sub sub = sub(subId);
+            if (!sub.hasQuota(wallNow)) {
+                wait = Math.min(wait, sub.windowStart + sub.quotaWindow - wallNow);
+            }
+        }
+        return wait;
+    }
+
+    void onTransmit(int subId) {
+        Sub sub = sub(subId);
+        sub.inFlight++;
+        // starts a new window when due
+        sub.hasQuota(System.currentTimeMillis());
+        sub.windowUsed++;
+    }
+
+    void onResult(int subId, boolean sent, long now) {
+        Sub sub = sub(subId);
+        sub.inFlight = Math.max(0, sub.inFlight - 1);
+        sub.failureRate += FAILURE_ALPHA * ((sent ? 0 : 1) - sub.failureRate);
+        if (sent) {
+            sub.sent++;
+            sub.throughput.add(now);
+        }
+    }
+
+    /**
+     * {@code {balance, subs: [{sub_id, active, in_flight, failure_rate,
+     * sent, sent_per_minute, quota, quota_window_ms, quota_used}]}},
+     * {@code sub_id} is -1 for the default SmsManager.
+     */
+    JSONObject toJson(long now) throws JSONException {
+        refresh(now);
+        for (int subId : active) {
+            sub(subId);
+        }
+        JSONObject res = new JSONObject();
+        res.put("balance", enabled);
+        JSONArray list = new JSONArray();
+        for (Map.Entry<Integer, Sub> entry : subs.entrySet()) {
+            Sub sub = entry.getValue();
+            JSONObject json = new JSONObject();
+            json.put("sub_id", entry.getKey());
+            json.put("active", active.contains(entry.getKey()));
+            json.put("in_flight", sub.inFlight);
+            json.put("failure_rate", sub.failureRate);
+            json.put("sent", sub.sent);
+            json.put("sent_per_minute", sub.throughput.perMinute(now));
+            if (sub.quota > 0) {
+                json.put("quota", sub.quota);
+                json.put("quota_window_ms", sub.quotaWindow);
+                sub.hasQuota(System.currentTimeMillis());
+                json.put("quota_used", sub.windowUsed);
+            }
+            list.put(json);
+        }
+        res.put("subs", list);
+        return res;
+    }
+
+    private void refresh(long now) {
+        if (now - refreshedAt < REFRESH_MS) {
+            return;
+        }
+        refreshedAt = now;
+        active = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+            ? readActive()
+            : Collections.<Integer>emptyList();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP_MR1)
+    private List<Integer> readActive() {
+        List<Integer> res = new ArrayList<>();
+        try {
+            List<SubscriptionInfo> infos = SubscriptionManager.from(context).getActiveSubscriptionInfoList();
+            if (infos != null) {
+                for (SubscriptionInfo info : infos) {
+                    res.add(info.getSubscriptionId());
+                }
+            }
+        } catch (SecurityException e) {
+            // READ_PHONE_STATE may be revoked
+            Log.d(TAG, e.toString());
+        }
+        return res;
+    }
+
+    private Sub sub(int subId) {
+        Sub sub = subs.get(subId);
+        if (sub == null) {
+            sub = new Sub();
+            subs.put(subId, sub);
+        }
+        return sub;
+    }
+
+    private static class Sub {
+        final Throughput throughput = new Throughput();
+        int inFlight;
+        double failureRate;
+        long sent;
+        int quota;
+        long quotaWindow;
+        long windowStart;
+        int windowUsed;
+
+        double load() {
+            return (inFlight + 1) / (1 - Math.min(failureRate, MAX_FAILURE_RATE));
+        }
+
+        // wall clock time
+        boolean hasQuota(long now) {
+            if (quota <= 0) {
+                return true;
+            }
+            if (now - windowStart >= quotaWindow) {
+                // a new window, aligned on the previous ones
+                windowStart = now - (now - windowStart) % quotaWindow;
+                windowUsed = 0;
+            }
+            return windowUsed < quota;
+        }
+    }
+
+    /**
+     * Messages sent over the last minute, in a ring of time buckets.
+     */
+    private static class Throughput {
+        private final long[] counts = new long[THROUGHPUT_BUCKETS];
+        private final long[] starts = new long[THROUGHPUT_BUCKETS];
+
+        void add(long now) {
+            long start = now - now % THROUGHPUT_BUCKET_MS;
+            int i = (int) ((now / THROUGHPUT_BUCKET_MS) % THROUGHPUT_BUCKETS);
+            if (starts[i] != start) {
+                starts[i] = start;
+                counts[i] = 0;
+            }
+            counts[i]++;
+        }
+
+        long perMinute(long now) {
+            long total = 0;
+            for (int i = 0; i < THROUGHPUT_BUCKETS; i++) {
+                if (now - starts[i] < THROUGHPUT_BUCKETS * THROUGHPUT_BUCKET_MS) {
+                    total += counts[i];
+                }
+            }
+            return total;
+        }
+    }
+}
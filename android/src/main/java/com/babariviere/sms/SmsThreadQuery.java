@@ -0,0 +1,206 @@
+package com.babariviere.sms;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Lists conversations from the threads table of the telephony provider.
+ *
+ * A page of threads costs the threads query, a grouped count query per
+ * 500 threads with unread messages, and the canonical addresses of their
+ * recipients.
+ *
+ * The simple conversations uri ignores the sort order, and a LIMIT suffix
+ * with it, so threads are always paged in memory.
+ */
+
+class SmsThreadQuery {
+    private static final Uri CONVERSATIONS_URI = Uri.parse("content://mms-sms/conversations?simple=true");
+    private static final Uri CANONICAL_ADDRESSES_URI = Uri.parse("content://mms-sms/canonical-addresses");
+    private static final Uri INBOX_URI = Uri.parse("content://sms/inbox");
+    // stays below the SQLite limit of 999 bound arguments
+    private static final int MAX_ARGS = 500;
+    private static final String[] THREAD_PROJECTION = {
+        "_id", "date", "message_count", "recipient_ids", "snippet", "read"
+    };
+
+    private final ContentResolver resolver;
+
+    SmsThreadQuery(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Replies with one row per thread, most recent first. Arguments are
+     * the optional {@code start} and {@code count}.
+     */
+    void query(MethodCall call, MethodChannel.Result result) {
+        int start = call.hasArgument("start") ? (int) call.argument("start") : 0;
+        int count = call.hasArgument("count") ? (int) call.argument("count") : -1;
+
+        List<JSONObject> threads = new ArrayList<>();
+        // threads with unread messages
+        Map<Long, JSONObject> unread = new HashMap<>();
+        List<String[]> recipients = new ArrayList<>();
+        Set<String> recipientIds = new LinkedHashSet<>();
+
+        // always sorted by date DESC
+        Cursor cursor = resolver.query(CONVERSATIONS_URI, THREAD_PROJECTION, null, null, null);
+        if (cursor == null) {
+            result.error("#01", "permission denied", null);
+            return;
+        }
+        cursor = new SmsQueryEngine.WindowCursor(cursor, Math.max(start, 0), count > 0 ? count : -1);
+        try {
+            while (cursor.moveToNext()) {
+                JSONObject thread = new JSONObject();
+                long id = cursor.getLong(0);
+                thread.put("thread_id", id);
+                thread.put("date", cursor.getLong(1));
+                thread.put("message_count", cursor.getInt(2));
+                thread.put("snippet", cursor.getString(4));
+                thread.put("read", cursor.getInt(5));
+                thread.put("unread_count", 0);
+                if (cursor.getInt(5) == 0) {
+                    unread.put(id, thread);
+                }
+                String ids = cursor.getString(3);
+                String[] split = ids != null ? ids.trim().split(" +") : new String[0];
+                for (String recipientId : split) {
+                    if (!recipientId.isEmpty()) {
+                        recipientIds.add(recipientId);
+                    }
+                }
+                recipients.add(split);
+                threads.add(thread);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+            return;
+        } finally {
+            cursor.close();
+        }
+
+        try {
+            countUnread(unread);
+            Map<String, String> addresses = queryAddresses(recipientIds);
+            JSONArray res = new JSONArray();
+            for (int i = 0; i < threads.size(); i++) {
+                JSONObject thread = threads.get(i);
+                JSONArray threadAddresses = new JSONArray();
+                for (String recipientId : recipients.get(i)) {
+                    String address = addresses.get(recipientId);
+                    if (address != null) {
+                        threadAddresses.put(address);
+                    }
+                }
+                thread.put("addresses", threadAddresses);
+                res.put(thread);
+            }
+            result.success(res);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            result.error("#03", e.getMessage(), null);
+        }
+    }
+
+    /**
+     * Counts unread messages of the given threads with one grouped
+     * {@code count(*)} query per {@code MAX_ARGS} threads. The provider has
+     * no group by argument, so it is closed into the selection, which it
+     * wraps in parentheses. Providers that reject it are read a row per
+     * unread message instead.
+     */
+    private void countUnread(Map<Long, JSONObject> threads) throws JSONException {
+        List<String> ids = new ArrayList<>();
+        for (Long id : threads.keySet()) {
+            ids.add(String.valueOf(id));
+        }
+        Map<Long, Integer> counts = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += MAX_ARGS) {
+            SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+            selection.and("read = 0");
+            selection.andIn("thread_id", chunk(ids, from));
+            Cursor cursor;
+            try {
+                cursor = resolver.query(INBOX_URI, new String[]{ "thread_id", "count(*)" },
+                    selection.sql + ") GROUP BY (thread_id", selection.argsArray(), null);
+            } catch (SQLiteException | IllegalArgumentException e) {
+                cursor = null;
+            }
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        counts.put(cursor.getLong(0), cursor.getInt(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                continue;
+            }
+            cursor = resolver.query(INBOX_URI, new String[]{ "thread_id" },
+                selection.sql, selection.argsArray(), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    Integer current = counts.get(id);
+                    counts.put(id, current == null ? 1 : current + 1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            JSONObject thread = threads.get(entry.getKey());
+            if (thread != null) {
+                thread.put("unread_count", (int) entry.getValue());
+            }
+        }
+    }
+
+    private Map<String, String> queryAddresses(Set<String> recipientIds) {
+        List<String> ids = new ArrayList<>(recipientIds);
+        Map<String, String> addresses = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += MAX_ARGS) {
+            SmsQueryEngine.Selection selection = new SmsQueryEngine.Selection();
+            selection.andIn("_id", chunk(ids, from));
+            Cursor cursor = resolver.query(CANONICAL_ADDRESSES_URI, new String[]{ "_id", "address" },
+                selection.sql, selection.argsArray(), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    addresses.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return addresses;
+    }
+
+    private static String[] chunk(List<String> values, int from) {
+        return values.subList(from, Math.min(from + MAX_ARGS, values.size())).toArray(new String[0]);
+    }
+}
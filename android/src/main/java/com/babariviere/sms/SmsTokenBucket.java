@@ -0,0 +1,52 @@
+package com.babariviere.sms;
+
+/**
+ * Token bucket pacing the sends of one subscription: {@code burst} messages
+ * may leave at once, then {@code perSecond} messages per second.
+ *
+ * Not thread safe, the send queue only touches it from its own thread.
+ */
+
+class SmsTokenBucket {
+    private final double perMs;
+    private final double capacity;
+    private double tokens;
+    private long last;
+
+    SmsTokenBucket(double perSecond, int burst, long now) {
+        this.perMs = perSecond / 1000;
+        this.capacity = Math.max(burst, 1);
+        this.tokens = capacity;
+        this.last = now;
+    }
+
+    /**
+     * Takes a token if one is available.
+     */
+    boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Milliseconds until the next token, 0 if one is available.
+     */
+    long delayUntilToken(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / perMs);
+    }
+
+    private void refill(long now) {
+        if (now > last) {
+            tokens = Math.min(capacity, tokens + (now - last) * perMs);
+            last = now;
+        }
+    }
+}
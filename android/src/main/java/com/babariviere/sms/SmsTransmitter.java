@@ -0,0 +1,96 @@
+package com.babariviere.sms;
+
+import android.annotation.TargetApi;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.telephony.SmsManager;
+
+import com.babariviere.sms.status.SentReportTracker;
+
+import java.util.ArrayList;
+
+/**
+ * Hands a message to the {@link SmsManager}, with the SMS_SENT and
+ * SMS_DELIVERED broadcasts that report its state.
+ */
+
+class SmsTransmitter {
+    static final String ACTION_SENT = "SMS_SENT";
+    static final String ACTION_DELIVERED = "SMS_DELIVERED";
+    static final String EXTRA_SENT_ID = "sentId";
+
+    private final Context context;
+    private final SentReportTracker tracker = SentReportTracker.get();
+
+    SmsTransmitter(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Sends {@code sms} on {@code subId} (the default SmsManager when
+     * null), in several parts when it does not fit in one segment. Every
+     * part is registered in the {@link SentReportTracker}, its reports
+     * carry only its request code.
+     *
+     * @return the request codes of the parts
+     * @throws UnsupportedOperationException when a subscription is asked
+     * for below Android 5.1
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    int[] send(OutgoingSms sms, Integer subId, long outboxId, boolean canRetry) {
+        SmsManager smsManager = managerFor(subId);
+        ArrayList<String> parts = smsManager.divideMessage(sms.body);
+        if (parts == null || parts.size() <= 1) {
+            int requestCode = tracker.register(sms.sentId, outboxId, 0, 1, canRetry);
+            smsManager.sendTextMessage(sms.address, null, sms.body,
+                reportIntent(ACTION_SENT, sms, requestCode),
+                reportIntent(ACTION_DELIVERED, sms, requestCode));
+            return new int[]{ requestCode };
+        }
+
+        ArrayList<PendingIntent> sentIntents = new ArrayList<>(parts.size());
+        ArrayList<PendingIntent> deliveredIntents = new ArrayList<>(parts.size());
+        int[] requestCodes = new int[parts.size()];
+        for (int i = 0; i < parts.size(); i++) {
+            int requestCode = tracker.register(sms.sentId, outboxId, i, parts.size(), canRetry);
+            requestCodes[i] = requestCode;
+            sentIntents.add(reportIntent(ACTION_SENT, sms, requestCode));
+            deliveredIntents.add(reportIntent(ACTION_DELIVERED, sms, requestCode));
+        }
+        smsManager.sendMultipartTextMessage(sms.address, null, parts, sentIntents, deliveredIntents);
+        return requestCodes;
+    }
+
+    /**
+     * The request code is unique among the parts in flight, so the intent
+     * never replaces the one of another part; the sent and delivered
+     * intents of a part differ by their action.
+     */
+    private PendingIntent reportIntent(String action, OutgoingSms sms, int requestCode) {
+        Intent intent = new Intent(action);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(SentReportTracker.EXTRA_REQUEST_CODE, requestCode);
+        // for receivers that don't use the tracker
+        intent.putExtra(EXTRA_SENT_ID, sms.sentId);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return PendingIntent.getBroadcast(context, requestCode, intent, flags);
+    }
+
+    /**
+     * {@link SmsManager} of a subscription, the default one for null.
+     */
+    static SmsManager managerFor(Integer subId) {
+        if (subId == null) {
+            return SmsManager.getDefault();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            return SmsManager.getSmsManagerForSubscriptionId(subId);
+        }
+        throw new UnsupportedOperationException("this version of android does not support multicard SIM");
+    }
+}
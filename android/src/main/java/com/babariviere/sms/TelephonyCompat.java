@@ -40,6 +40,17 @@ class TelephonyCompat {
     }
   }
 
+  /**
+   * Only the default SMS app may write to the SMS provider since KitKat,
+   * before that every app holding WRITE_SMS could.
+   */
+  public static boolean isDefaultSmsApp(Context context) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return true;
+    }
+    return context.getPackageName().equals(Telephony.Sms.getDefaultSmsPackage(context));
+  }
+
   /**
    * Given the recipients list and subject of an unsaved message,
    * return its thread ID.  If the message starts a new thread,
@@ -38,7 +38,7 @@ class UserProfileProvider implements FlutterPlugin, MethodChannel.MethodCallHand
     private Context context;
     private ActivityPluginBinding activityBinding;
     private Permissions permissions;
-    private MethodChannel.Result pendingResult;
+    private final PendingCalls<Void> pendingCalls = new PendingCalls<>();
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding binding) {
@@ -86,16 +86,17 @@ class UserProfileProvider implements FlutterPlugin, MethodChannel.MethodCallHand
             result.notImplemented();
             return;
         }
-        pendingResult = result;
-        if (ContextCompat.checkSelfPermission(context, permissionsList[0])
-            != PackageManager.PERMISSION_GRANTED) {
+        boolean granted = ContextCompat.checkSelfPermission(context, permissionsList[0])
+            == PackageManager.PERMISSION_GRANTED;
+        PendingCalls.Call<Void> pending = pendingCalls.add(null, result, !granted);
+        if (!granted) {
             ActivityCompat.requestPermissions(
                 activityBinding.getActivity(),
                 permissionsList,
                 READ_CONTACT_ID_REQ
             );
         } else {
-            queryUserProfile();
+            runQuery(pending);
         }
     }
 
@@ -106,24 +107,42 @@ class UserProfileProvider implements FlutterPlugin, MethodChannel.MethodCallHand
         }
         for (int res : grantResults) {
             if (res != PackageManager.PERMISSION_GRANTED) {
-                pendingResult.error("PERMISSION_DENIED", "Permissão negada", null);
+                for (PendingCalls.Call<Void> pending : pendingCalls.takeAwaitingPermission()) {
+                    pending.error("PERMISSION_DENIED", "Permissão negada", null);
+                }
                 return false;
             }
         }
-        queryUserProfile();
+        for (PendingCalls.Call<Void> pending : pendingCalls.takeAwaitingPermission()) {
+            runQuery(pending);
+        }
         return true;
     }
 
-    private void queryUserProfile() {
+    private void runQuery(final PendingCalls.Call<Void> pending) {
+        SmsExecutors.io().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queryUserProfile(pending);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    pending.error("#03", e.getMessage(), null);
+                }
+            }
+        });
+    }
+
+    private void queryUserProfile(MethodChannel.Result result) {
         try {
             JSONObject obj = getProfileObject();
             if (obj != null) {
                 obj.put("addresses", getProfileAddresses(obj.getString("id")));
             }
-            pendingResult.success(obj);
+            result.success(obj);
         } catch (JSONException e) {
             e.printStackTrace();
-            pendingResult.error("JSON_ERROR", e.getMessage(), null);
+            result.error("JSON_ERROR", e.getMessage(), null);
         }
     }
 
@@ -0,0 +1,141 @@
+package com.babariviere.sms.status;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Messages parts waiting for their SMS_SENT and SMS_DELIVERED reports.
+ *
+ * Every part gets its own request code, so its PendingIntents never
+ * replace the ones of another part, and the reports carry only that code.
+ * The code indexes a fixed size ring of slots: registering and resolving
+ * take no lock, the ring bounds the memory whatever the send rate.
+ *
+ * A slot is reused once its part is done (delivered, or failed to send)
+ * and every receiver of the last report had {@code GRACE_MS} to read it,
+ * or once it is older than {@code MAX_AGE_MS}: delivery reports may never
+ * come.
+ *
+ * Codes start at a random value in every process: the PendingIntents of a
+ * previous process may still be pending, and a new part registered with
+ * one of their codes would replace their extras.
+ */
+
+public final class SentReportTracker {
+    public static final String EXTRA_REQUEST_CODE = "requestCode";
+    private static final int SIZE = 8192;
+    private static final int MASK = SIZE - 1;
+    private static final long GRACE_MS = 10 * 1000;
+    private static final long MAX_AGE_MS = 60 * 60 * 1000;
+
+    private static final SentReportTracker INSTANCE = new SentReportTracker();
+
+    private final AtomicReferenceArray<Report> slots = new AtomicReferenceArray<>(SIZE);
+    private final AtomicInteger nextCode = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE));
+
+    private SentReportTracker() {
+    }
+
+    public static SentReportTracker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a part and returns its request code.
+     */
+    public int register(int sentId, long outboxId, int part, int parts, boolean canRetry) {
+        long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < SIZE; i++) {
+            int code = nextCode.getAndIncrement() & Integer.MAX_VALUE;
+            Report current = slots.get(code & MASK);
+            if (current != null && !current.reusable(now)) {
+                continue;
+            }
+            if (slots.compareAndSet(code & MASK, current,
+                    new Report(code, sentId, outboxId, part, parts, canRetry, now))) {
+                return code;
+            }
+        }
+        // every slot is in use, the part of the next code loses its reports
+        int code = nextCode.getAndIncrement() & Integer.MAX_VALUE;
+        slots.set(code & MASK, new Report(code, sentId, outboxId, part, parts, canRetry, now));
+        return code;
+    }
+
+    /**
+     * The part a report is about, null when it is unknown or was evicted.
+     */
+    public Report resolve(Intent intent) {
+        int code = intent.getIntExtra(EXTRA_REQUEST_CODE, -1);
+        if (code < 0) {
+            return null;
+        }
+        Report report = slots.get(code & MASK);
+        return report != null && report.requestCode == code ? report : null;
+    }
+
+    /**
+     * No more report is expected for the part of {@code requestCode}, when
+     * it is still registered.
+     */
+    public void done(int requestCode) {
+        Report report = slots.get(requestCode & MASK);
+        if (report != null && report.requestCode == requestCode) {
+            report.done();
+        }
+    }
+
+    /**
+     * Number of parts still waiting for a report.
+     */
+    public int pending() {
+        long now = SystemClock.uptimeMillis();
+        int count = 0;
+        for (int i = 0; i < SIZE; i++) {
+            Report report = slots.get(i);
+            if (report != null && report.doneAt == 0 && now - report.createdAt <= MAX_AGE_MS) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static final class Report {
+        public final int requestCode;
+        public final int sentId;
+        public final long outboxId;
+        public final int part;
+        public final int parts;
+        public final boolean canRetry;
+        final long createdAt;
+        private volatile long doneAt;
+
+        Report(int requestCode, int sentId, long outboxId, int part, int parts, boolean canRetry, long createdAt) {
+            this.requestCode = requestCode;
+            this.sentId = sentId;
+            this.outboxId = outboxId;
+            this.part = part;
+            this.parts = parts;
+            this.canRetry = canRetry;
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * No more report is expected for this part.
+         */
+        public void done() {
+            if (doneAt == 0) {
+                doneAt = SystemClock.uptimeMillis();
+            }
+        }
+
+        boolean reusable(long now) {
+            long done = doneAt;
+            return (done != 0 && now - done > GRACE_MS) || now - createdAt > MAX_AGE_MS;
+        }
+    }
+}
@@ -30,21 +30,38 @@ public class SmsStateChangeReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         try {
             JSONObject stateChange = new JSONObject();
-            stateChange.put("sentId", intent.getIntExtra("sentId", -1));
+            // the request code of the report names the part, extras may belong to another send
+            SentReportTracker.Report report = SentReportTracker.get().resolve(intent);
+            stateChange.put("sentId", report != null ? report.sentId : intent.getIntExtra("sentId", -1));
+            if (report != null && report.parts > 1) {
+                // one report per part of a multipart message
+                stateChange.put("part", report.part);
+                stateChange.put("parts", report.parts);
+            }
             String action = intent.getAction();
 
             switch (action != null ? action : "none") {
                 case "SMS_SENT": {
-                    if (getResultCode() != Activity.RESULT_OK) {
-                        stateChange.put("state", "fail");
-                    } else {
+                    int resultCode = getResultCode();
+                    if (resultCode == Activity.RESULT_OK) {
                         stateChange.put("state", "sent");
+                    } else {
+                        // the outbox sends the message again once service is back
+                        boolean retrying = isTransientFailure(resultCode) && report != null && report.canRetry;
+                        stateChange.put("state", retrying ? "retrying" : "fail");
+                        if (report != null) {
+                            report.done();
+                        }
+                        stateChange.put("error", sentResult(resultCode));
                     }
-                    Log.d("flutter_sms", "Sent result: " + sentResult(getResultCode()));
+                    Log.d("flutter_sms", "Sent result: " + sentResult(resultCode));
                     break;
                 }
                 case "SMS_DELIVERED": {
                     stateChange.put("state", "delivered");
+                    if (report != null) {
+                        report.done();
+                    }
                     break;
                 }
                 default: {
@@ -60,7 +77,24 @@ public class SmsStateChangeReceiver extends BroadcastReceiver {
         }
     }
 
-    String sentResult(int resultCode) {
+    /**
+     * Whether a message failing with {@code resultCode} may go through
+     * later: no service, radio off or rate limited.
+     */
+    public static boolean isTransientFailure(int resultCode) {
+        switch (resultCode) {
+            case SmsManager.RESULT_ERROR_RADIO_OFF:
+            case SmsManager.RESULT_ERROR_NO_SERVICE:
+            case SmsManager.RESULT_ERROR_LIMIT_EXCEEDED:
+            case SmsManager.RESULT_RADIO_NOT_AVAILABLE:
+            case SmsManager.RESULT_NETWORK_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static String sentResult(int resultCode) {
         switch (resultCode) {
             case Activity.RESULT_OK:
                 return "Activity.RESULT_OK";
@@ -72,6 +106,12 @@ public class SmsStateChangeReceiver extends BroadcastReceiver {
                 return "SmsManager.RESULT_ERROR_NULL_PDU";
             case SmsManager.RESULT_ERROR_NO_SERVICE:
                 return "SmsManager.RESULT_ERROR_NO_SERVICE";
+            case SmsManager.RESULT_ERROR_LIMIT_EXCEEDED:
+                return "SmsManager.RESULT_ERROR_LIMIT_EXCEEDED";
+            case SmsManager.RESULT_RADIO_NOT_AVAILABLE:
+                return "SmsManager.RESULT_RADIO_NOT_AVAILABLE";
+            case SmsManager.RESULT_NETWORK_ERROR:
+                return "SmsManager.RESULT_NETWORK_ERROR";
             default:
                 return "Unknown error code";
         }